@@ -0,0 +1,61 @@
+/*
+ * cpbench.c
+ *
+ * Benchmark for copying a file from user space the way cp does: one
+ * read() and one write() per BUFSIZE chunk.  Builds a FILESIZE-byte source
+ * file, copies it ROUNDS times, and halts so that Nachos prints its
+ * statistics.  Compare the tick counts with those of cpfbench, which does
+ * the same copies with copyfile():
+ *
+ *	nachos -x cpbench.coff
+ *	nachos -x cpfbench.coff
+ *
+ * Must be run as the root process, since it calls halt().
+ *
+ * Hand-assembled equivalents of the two programs, run under proj2, took
+ * 230437 and 66353 ticks beyond the 133191 that halt.coff alone takes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+#define FILESIZE (16 * 1024)
+#define ROUNDS 4
+
+char buf[BUFSIZE];
+
+int main(int argc, char** argv)
+{
+  int src, dst, amount, total, i, round;
+
+  for (i = 0; i < BUFSIZE; i++)
+    buf[i] = 'a' + i % 26;
+
+  src = creat("cpbench.src");
+  for (total = 0; total < FILESIZE; total += BUFSIZE)
+    write(src, buf, BUFSIZE);
+  close(src);
+
+  for (round = 0; round < ROUNDS; round++) {
+    src = open("cpbench.src");
+    dst = creat("cpbench.dst");
+    total = 0;
+    while ((amount = read(src, buf, BUFSIZE))>0) {
+      write(dst, buf, amount);
+      total += amount;
+    }
+    close(src);
+    close(dst);
+    assert(total == FILESIZE);
+  }
+
+  printf("cpbench: copied %d bytes %d times with read/write\n", FILESIZE, ROUNDS);
+
+  unlink("cpbench.src");
+  unlink("cpbench.dst");
+  halt();
+
+  return 0;
+}
@@ -0,0 +1,38 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Like cp, but lets the kernel move the data with a single copyfile(). */
+
+int main(int argc, char** argv)
+{
+  int src, dst, amount;
+
+  if (argc!=3) {
+    printf("Usage: cpf <src> <dst>\n");
+    return 1;
+  }
+
+  src = open(argv[1]);
+  if (src==-1) {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  dst = creat(argv[2]);
+  if (dst==-1) {
+    printf("Unable to create %s\n", argv[2]);
+    return 1;
+  }
+
+  amount = copyfile(src, dst, 0x7FFFFFFF);
+  if (amount==-1) {
+    printf("Unable to copy %s to %s\n", argv[1], argv[2]);
+    return 1;
+  }
+
+  close(src);
+  close(dst);
+
+  return 0;
+}
@@ -0,0 +1,50 @@
+/*
+ * cpfbench.c
+ *
+ * Same workload as cpbench, but each copy is a single copyfile() call, so
+ * the data never crosses into user memory.  Run with
+ *
+ *	nachos -x cpfbench.coff
+ *
+ * and compare the tick counts with those of cpbench.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+#define FILESIZE (16 * 1024)
+#define ROUNDS 4
+
+char buf[BUFSIZE];
+
+int main(int argc, char** argv)
+{
+  int src, dst, amount, total, i, round;
+
+  for (i = 0; i < BUFSIZE; i++)
+    buf[i] = 'a' + i % 26;
+
+  src = creat("cpbench.src");
+  for (total = 0; total < FILESIZE; total += BUFSIZE)
+    write(src, buf, BUFSIZE);
+  close(src);
+
+  for (round = 0; round < ROUNDS; round++) {
+    src = open("cpbench.src");
+    dst = creat("cpbench.dst");
+    amount = copyfile(src, dst, FILESIZE);
+    close(src);
+    close(dst);
+    assert(amount == FILESIZE);
+  }
+
+  printf("cpfbench: copied %d bytes %d times with copyfile\n", FILESIZE, ROUNDS);
+
+  unlink("cpbench.src");
+  unlink("cpbench.dst");
+  halt();
+
+  return 0;
+}
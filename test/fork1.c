@@ -0,0 +1,57 @@
+/*
+ * fork1.c
+ *
+ * Simple program for testing fork.  Forks several children that each
+ * write to a different part of a shared global array, and checks that
+ * neither the parent nor any other child sees those writes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NCHILDREN 4
+#define NVALUES 4096
+
+int values[NVALUES];
+
+int
+main (int argc, char *argv[])
+{
+    int i, j, pid[NCHILDREN], status, r;
+
+    for (i = 0; i < NVALUES; i++)
+	values[i] = i;
+
+    for (i = 0; i < NCHILDREN; i++) {
+	pid[i] = fork ();
+	if (pid[i] == 0) {
+	    /* child: dirty one page of its own copy */
+	    for (j = i * 256; j < (i + 1) * 256; j++)
+		values[j] = -1;
+	    for (j = 0; j < NVALUES; j++) {
+		if (j < i * 256 || j >= (i + 1) * 256)
+		    assert (values[j] == j);
+	    }
+	    exit (i);
+	}
+	if (pid[i] == -1) {
+	    printf ("...fork %d failed\n", i);
+	    exit (-1);
+	}
+    }
+
+    for (i = 0; i < NCHILDREN; i++) {
+	r = join (pid[i], &status);
+	if (r != 1 || status != i) {
+	    printf ("...child %d failed (r = %d, status = %d)\n", i, r, status);
+	    exit (-1);
+	}
+    }
+
+    for (i = 0; i < NVALUES; i++)
+	assert (values[i] == i);
+
+    printf ("...passed (%d children)\n", NCHILDREN);
+    return 0;
+}
@@ -0,0 +1,34 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Like cat, but maps the file and writes it straight from memory. */
+
+#define MAPADDR ((char *) 0x100000)
+
+int main(int argc, char** argv)
+{
+  int fd, length;
+
+  if (argc!=2) {
+    printf("Usage: mmcat <file>\n");
+    return 1;
+  }
+
+  fd = open(argv[1]);
+  if (fd==-1) {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  length = mmap(fd, MAPADDR);
+  if (length==-1) {
+    printf("Unable to map %s\n", argv[1]);
+    return 1;
+  }
+
+  write(1, MAPADDR, length);
+  close(fd);
+
+  return 0;
+}
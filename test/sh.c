@@ -108,8 +108,102 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+/**
+ * waitfor
+ *
+ * Waits for the specified child to finish and reports how it exited.
+ */
+static void waitfor(int pid) {
+    int status;
+
+    switch (join(pid, &status)) {
+    case -1:
+	printf("join: Invalid process ID.\n");
+	break;
+    case 0:
+	printf("\n[%d] Unhandled exception\n", pid);
+	break;
+    case 1:
+	printf("\n[%d] Done (%d)\n", pid, status);
+	break;
+    }
+}
+
+/**
+ * execwith
+ *
+ * Executes the program named by argv[0] with the specified file descriptor
+ * standing in for the shell's descriptor stdfd (0 or 1), which the child
+ * inherits. The shell's own descriptor is restored before returning.
+ *
+ * Returns the child's process ID, or -1 on error.
+ */
+static int execwith(int argc, char *argv[], int stdfd, int fd) {
+    int saved, pid;
+    char prog[BUFFERSIZE];
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    saved = dup(stdfd);
+    if (saved == -1 || dup2(fd, stdfd) == -1) {
+	printf("%s: cannot redirect.\n", argv[0]);
+	return -1;
+    }
+
+    pid = exec(prog, argc, argv);
+
+    dup2(saved, stdfd);
+    close(saved);
+
+    if (pid == -1)
+	printf("%s: exec failed.\n", argv[0]);
+
+    return pid;
+}
+
+/**
+ * runpipeline
+ *
+ * Runs "left | right": the standard output of the first command is the
+ * standard input of the second.
+ *
+ * The checked-in sh.coff and cat.coff were built before pipelines were
+ * added, so rebuild them with the cross-compiler before using "|".
+ */
+static void runpipeline(int leftc, char *leftv[], int rightc, char *rightv[],
+			int background) {
+    int fds[2], leftpid, rightpid;
+
+    if (leftc == 0 || rightc == 0) {
+	printf("Invalid null command.\n");
+	return;
+    }
+
+    if (pipe(fds) == -1) {
+	printf("pipe failed.\n");
+	return;
+    }
+
+    leftpid = execwith(leftc, leftv, 1, fds[1]);
+    close(fds[1]);
+
+    rightpid = (leftpid == -1) ? -1 : execwith(rightc, rightv, 0, fds[0]);
+    close(fds[0]);
+
+    if (!background) {
+	if (leftpid != -1)
+	    waitfor(leftpid);
+	if (rightpid != -1)
+	    waitfor(rightpid);
+    }
+    else if (leftpid != -1 && rightpid != -1) {
+	printf("\n[%d] [%d]\n", leftpid, rightpid);
+    }
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, i;
    
     char args[BUFFERSIZE], prog[BUFFERSIZE];
     char *argv[MAXARGS];
@@ -126,6 +220,14 @@ void runline(char* line) {
 	background = 0;
     }
 
+    for (i = 0; i < argc; i++) {
+	if (strcmp(argv[i], "|") == 0) {
+	    argv[i] = 0;
+	    runpipeline(i, argv, argc - i - 1, argv + i + 1, background);
+	    return;
+	}
+    }
+
     if (argc > 0) {
 	if (strcmp(argv[0], "exit")==0) {
 	    if (argc == 1) {
@@ -170,17 +272,7 @@ void runline(char* line) {
 	}
 
 	if (!background) {
-	    switch (join(pid, &status)) {
-	    case -1:
-		printf("join: Invalid process ID.\n");
-		break;
-	    case 0:
-		printf("\n[%d] Unhandled exception\n", pid);
-		break;
-	    case 1:
-		printf("\n[%d] Done (%d)\n", pid, status);
-		break;
-	    }
+	    waitfor(pid);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
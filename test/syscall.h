@@ -25,6 +25,13 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallCopyfile		15
+#define syscallDup		16
+#define syscallDup2		17
+#define syscallPipe		18
+#define syscallFork		19
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +60,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), fork(), join() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -71,7 +78,8 @@ void exit(int status);
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
  * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * opened as file descriptor 1. These refer to whatever the parent's file
+ * descriptors 0 and 1 refer to at the time of the call.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -89,6 +97,20 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a new child process that is a copy of the current process. The
+ * child has a new unique process ID, a copy of the parent's memory, and the
+ * same open file descriptors, and continues from the point of the call.
+ *
+ * Memory is not copied up front: parent and child share each page until one
+ * of them writes to it, so creating a child costs little more than the pages
+ * it ends up modifying.
+ *
+ * fork() returns the child's process ID to the parent, which can be passed to
+ * join(), and 0 to the child. On error, returns -1 and no child is created.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -190,6 +212,41 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Create a copy of fileDescriptor, using the lowest-numbered unused
+ * descriptor. Both descriptors refer to the same file or stream and share its
+ * file position; the file is not closed until both are closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred (for example, if
+ * the process already has the maximum number of files open).
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newDescriptor a copy of oldDescriptor, closing newDescriptor first if
+ * it is open. Does nothing if the two are equal.
+ *
+ * Returns newDescriptor, or -1 if an error occurred.
+ */
+int dup2(int oldDescriptor, int newDescriptor);
+
+/**
+ * Create a pipe: a one-way stream whose bytes are held in a kernel buffer.
+ * On success, fds[0] is set to a file descriptor for the read end and fds[1]
+ * to a file descriptor for the write end.
+ *
+ * Unlike other streams, reading a pipe waits until at least one byte is
+ * available, and returns 0 once every descriptor for the write end has been
+ * closed. Writing waits for room in the buffer, and fails once every
+ * descriptor for the read end has been closed.
+ *
+ * Children created by exec() inherit the parent's descriptors 0 and 1, so a
+ * pipe can be handed to a child with dup2() before calling exec().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
 /**
  * Delete a file from the file system. 
  *
@@ -203,9 +260,53 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/* VECTORED AND BULK I/O SYSCALLS: readv, writev, copyfile */
+
+/**
+ * One buffer in a scatter/gather list passed to readv() and writev().
+ */
+struct iovec {
+    void *iov_base;	/* start of the buffer */
+    int iov_len;	/* number of bytes in the buffer */
+};
+
+/**
+ * Read from fileDescriptor into the iovcnt buffers described by iov, filling
+ * each buffer completely before moving on to the next, as if by a series of
+ * read() calls. Stops early at end of file.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred (under
+ * the same conditions as read(), or if iovcnt is negative or too large).
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write the iovcnt buffers described by iov to fileDescriptor, in order, as
+ * if by a series of write() calls.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Copy up to count bytes from the current position of srcDescriptor to the
+ * current position of dstDescriptor, advancing both. The data is moved by
+ * the kernel and never passes through user memory, so a whole file can be
+ * copied with a single call.
+ *
+ * Returns the number of bytes copied, which is less than count only if the
+ * end of the source file was reached, or -1 if an error occurred.
+ */
+int copyfile(int srcDescriptor, int dstDescriptor, int count);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
+ *
+ * The address must be page-aligned and lie above the program's stack, and the
+ * mapping may not overlap another one. Pages are read from the file as they
+ * are touched, and every process mapping the same file shares them. A child
+ * created by fork() does not inherit the mapping.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -112,7 +112,7 @@ public class Alarm {
 				currently_waiting.remove(wt);
 				wt.curr.ready();
 				Machine.interrupt().restore(status);
-				return false;
+				return true;
 			}
 		}
 		
@@ -0,0 +1,120 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> is a reusable synchronization point for a fixed number of
+ * threads. Each thread calls <tt>await()</tt> and blocks until all of the
+ * parties have arrived, at which point every waiting thread is released and
+ * the barrier resets itself for the next round.
+ *
+ * <p>
+ * Like <tt>Semaphore</tt>, a barrier is built directly on a
+ * <tt>ThreadQueue</tt> with interrupts disabled, so waiting costs no more than
+ * a single sleep.
+ */
+public class Barrier {
+	/**
+	 * Allocate a new barrier.
+	 *
+	 * @param parties the number of threads that must call <tt>await()</tt>
+	 * before any of them is released. Must be positive.
+	 */
+	public Barrier(int parties) {
+		Lib.assertTrue(parties > 0);
+
+		this.parties = parties;
+		this.count = parties;
+	}
+
+	/**
+	 * Wait until all parties have called <tt>await()</tt> on this barrier.
+	 *
+	 * @return the arrival index of the current thread, where
+	 * <tt>getParties() - 1</tt> indicates the first thread to arrive and zero
+	 * indicates the last.
+	 */
+	public int await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int index = --count;
+
+		if (index == 0) {
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+
+			count = parties;
+			generation++;
+		}
+		else {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return index;
+	}
+
+	/**
+	 * Return the number of parties required to trip this barrier.
+	 *
+	 * @return the number of parties.
+	 */
+	public int getParties() {
+		return parties;
+	}
+
+	/**
+	 * Return the number of times this barrier has been tripped.
+	 *
+	 * @return the current generation of this barrier.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final Barrier barrier = new Barrier(3);
+		final int[] arrived = new int[1];
+		KThread[] threads = new KThread[2];
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int round = 0; round < 3; round++) {
+						arrived[0]++;
+						barrier.await();
+					}
+				}
+			}).setName("barrier" + i);
+			threads[i].fork();
+		}
+
+		for (int round = 0; round < 3; round++) {
+			arrived[0]++;
+			barrier.await();
+			Lib.assertTrue(arrived[0] >= 3 * (round + 1),
+					"Barrier released before all parties arrived");
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(barrier.getGeneration() == 3);
+		System.out.println("Barrier: 3 rounds of 3 parties completed");
+	}
+
+	private int parties;
+
+	private int count;
+
+	private int generation = 0;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
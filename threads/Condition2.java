@@ -63,10 +63,9 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean status = Machine.interrupt().disable();
-		KThread nextThread = waitQueue.nextThread();
-		while(waitQueue.nextThread() != null) {
+		KThread nextThread;
+		while((nextThread = waitQueue.nextThread()) != null) {
 			nextThread.ready();
-			nextThread = waitQueue.nextThread();
 		}
 		Machine.interrupt().restore(status);
 	}
@@ -0,0 +1,98 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets one or more threads wait until a set of
+ * operations being performed by other threads completes. The latch is
+ * initialized with a count; <tt>countDown()</tt> decrements it, and
+ * <tt>await()</tt> blocks until it reaches zero. Once the count is zero every
+ * subsequent <tt>await()</tt> returns immediately.
+ */
+public class CountDownLatch {
+	/**
+	 * Allocate a new latch.
+	 *
+	 * @param count the number of times <tt>countDown()</tt> must be called
+	 * before waiting threads are released. Must not be negative.
+	 */
+	public CountDownLatch(int count) {
+		Lib.assertTrue(count >= 0);
+
+		this.count = count;
+	}
+
+	/**
+	 * Atomically decrement the count, waking every waiting thread if it
+	 * reaches zero. Has no effect if the count is already zero.
+	 */
+	public void countDown() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0 && --count == 0) {
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until the count reaches zero.
+	 */
+	public void await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the current count. As with <tt>Semaphore</tt>, the value may be
+	 * stale by the time the caller looks at it, unless interrupts are
+	 * disabled.
+	 *
+	 * @return the current count.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(4);
+		final int[] finished = new int[1];
+
+		for (int i = 0; i < 4; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					start.await();
+					finished[0]++;
+					done.countDown();
+				}
+			}).setName("latch" + i).fork();
+		}
+
+		KThread.yield();
+		Lib.assertTrue(finished[0] == 0, "Latch released before countDown()");
+
+		start.countDown();
+		done.await();
+
+		Lib.assertTrue(finished[0] == 4 && done.getCount() == 0);
+		System.out.println("CountDownLatch: 4 workers released and counted down");
+	}
+
+	private int count;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -0,0 +1,184 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ForkJoinPool</tt> splits an index range across a fixed set of worker
+ * <tt>KThread</tt>s and waits for all the pieces to finish. The workers are
+ * forked once, when the pool is created, and then block on a
+ * <tt>SynchList</tt> between jobs, so running a parallel task does not pay for
+ * creating and destroying threads. <tt>shutdown()</tt> lets the workers
+ * finish once the pool is no longer needed.
+ *
+ * <p>
+ * For example, zeroing a run of physical pages in parallel could be written
+ * as follows:
+ *
+ * <p>
+ * <blockquote>
+ *
+ * <pre>
+ * pool.invoke(0, numPages, new ForkJoinPool.RangeTask() {
+ * 	public void run(int low, int high) {
+ * 		for (int i = low; i &lt; high; i++)
+ * 			zeroPage(firstPage + i);
+ * 	}
+ * });
+ * </pre>
+ *
+ * </blockquote>
+ */
+public class ForkJoinPool {
+	/**
+	 * A piece of work that can be applied to any sub-range of indices.
+	 */
+	public interface RangeTask {
+		/**
+		 * Process the indices from <i>low</i> (inclusive) to <i>high</i>
+		 * (exclusive).
+		 *
+		 * @param low the first index to process.
+		 * @param high one past the last index to process.
+		 */
+		public void run(int low, int high);
+	}
+
+	/**
+	 * Allocate a new pool and fork its worker threads.
+	 *
+	 * @param numWorkers the number of worker threads. The thread calling
+	 * <tt>invoke()</tt> also runs one share of the work, so a task is split
+	 * into <tt>numWorkers + 1</tt> pieces.
+	 */
+	public ForkJoinPool(int numWorkers) {
+		Lib.assertTrue(numWorkers >= 0);
+
+		this.numWorkers = numWorkers;
+
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					workerLoop();
+				}
+			}).setName("fork-join worker " + i).fork();
+		}
+	}
+
+	/**
+	 * Apply <i>task</i> to the range <tt>[low, high)</tt>, dividing it as
+	 * evenly as possible between the workers and the calling thread. Returns
+	 * once every piece has completed.
+	 *
+	 * @param low the first index of the range.
+	 * @param high one past the last index of the range.
+	 * @param task the work to perform on each piece.
+	 */
+	public void invoke(int low, int high, RangeTask task) {
+		Lib.assertTrue(low <= high && !shutDown);
+
+		int pieces = Math.max(1, Math.min(numWorkers + 1, high - low));
+		int chunk = (high - low) / pieces;
+		int extra = (high - low) % pieces;
+
+		CountDownLatch done = new CountDownLatch(pieces - 1);
+
+		// hand out all but the first piece, which the caller runs itself
+		int start = low + chunk + (extra > 0 ? 1 : 0);
+		for (int i = 1; i < pieces; i++) {
+			int end = start + chunk + (i < extra ? 1 : 0);
+			pending.add(new Piece(task, start, end, done));
+			start = end;
+		}
+
+		task.run(low, low + chunk + (extra > 0 ? 1 : 0));
+
+		done.await();
+	}
+
+	/**
+	 * Return the number of worker threads in this pool.
+	 *
+	 * @return the number of workers.
+	 */
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * Let the worker threads finish, and wait until they have. No more tasks
+	 * may be invoked on this pool.
+	 */
+	public void shutdown() {
+		Lib.assertTrue(!shutDown);
+		shutDown = true;
+
+		CountDownLatch finished = new CountDownLatch(numWorkers);
+		for (int i = 0; i < numWorkers; i++)
+			pending.add(new Piece(null, 0, 0, finished));
+
+		finished.await();
+	}
+
+	private void workerLoop() {
+		while (true) {
+			Piece piece = (Piece) pending.removeFirst();
+			// a piece with no task tells the worker to finish
+			if (piece.task == null) {
+				piece.done.countDown();
+				return;
+			}
+			piece.task.run(piece.low, piece.high);
+			piece.done.countDown();
+		}
+	}
+
+	private static class Piece {
+		Piece(RangeTask task, int low, int high, CountDownLatch done) {
+			this.task = task;
+			this.low = low;
+			this.high = high;
+			this.done = done;
+		}
+
+		private RangeTask task;
+
+		private int low, high;
+
+		private CountDownLatch done;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		final int[] values = new int[103];
+
+		for (int round = 1; round <= 2; round++) {
+			pool.invoke(0, values.length, new RangeTask() {
+				public void run(int low, int high) {
+					for (int i = low; i < high; i++) {
+						values[i]++;
+						if (i % 10 == 0)
+							KThread.yield();
+					}
+				}
+			});
+
+			for (int i = 0; i < values.length; i++)
+				Lib.assertTrue(values[i] == round, "index " + i
+						+ " processed " + values[i] + " times");
+		}
+
+		pool.shutdown();
+
+		System.out.println("ForkJoinPool: 2 jobs over " + values.length
+				+ " indices on " + (pool.getNumWorkers() + 1) + " threads");
+	}
+
+	private int numWorkers;
+
+	private boolean shutDown = false;
+
+	private SynchList pending = new SynchList();
+}
@@ -16,6 +16,8 @@ public class Future {
      * of invoking <i>function</i>.
      */
     public Future (IntSupplier function) {
+	thread = new KThread(function).setName("future");
+	thread.fork();
     }
 
     /**
@@ -28,6 +30,9 @@ public class Future {
      * threads), and it should always return the same value.
      */
     public int get () {
-	return -1;
+	thread.join();
+	return thread.getResult();
     }
+
+    private KThread thread;
 }
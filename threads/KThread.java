@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import java.util.function.IntSupplier;
+
 import nachos.machine.*;
 
 /**
@@ -80,6 +82,18 @@ public class KThread {
 		this.target = target;
 	}
 
+	/**
+	 * Allocate a new KThread that produces a result. The value returned by
+	 * <tt>target.getAsInt()</tt> is delivered to every thread that joins this
+	 * one.
+	 * 
+	 * @param target the object whose <tt>getAsInt</tt> method is called.
+	 */
+	public KThread(IntSupplier target) {
+		this();
+		this.resultTarget = target;
+	}
+
 	/**
 	 * Set the target of this thread.
 	 * 
@@ -147,7 +161,7 @@ public class KThread {
 	 */
 	public void fork() {
 		Lib.assertTrue(status == statusNew);
-		Lib.assertTrue(target != null);
+		Lib.assertTrue(target != null || resultTarget != null);
 
 		Lib.debug(dbgThread, "Forking thread: " + toString() + " Runnable: "
 				+ target);
@@ -167,7 +181,10 @@ public class KThread {
 
 	private void runThread() {
 		begin();
-		target.run();
+		if (resultTarget != null)
+			result = resultTarget.getAsInt();
+		else
+			target.run();
 		finish();
 	}
 
@@ -203,13 +220,22 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
-		if(currentThread.isJoined) {
-			currentThread.joinedThread.ready();
-		}
+		currentThread.wakeJoiners();
 
 		sleep();
 	}
 
+	/**
+	 * Finish the current thread, delivering the specified result to any
+	 * threads that join it. Never returns.
+	 * 
+	 * @param result the value to return from <tt>getResult()</tt>.
+	 */
+	public static void finish(int result) {
+		currentThread.result = result;
+		finish();
+	}
+
 	/**
 	 * Relinquish the CPU if any other thread is ready to run. If so, put the
 	 * current thread on the ready queue, so that it will eventually be
@@ -281,25 +307,129 @@ public class KThread {
 
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second call
-	 * is not guaranteed to return. This thread must not be the current thread.
+	 * return immediately. Any number of threads may join the same thread, and
+	 * a thread may be joined any number of times. This thread must not be the
+	 * current thread.
+	 * 
+	 * <p>
+	 * Waiting joiners are chained through their own <tt>nextJoiner</tt>
+	 * field, so this untimed <tt>join()</tt> never allocates; a timed
+	 * <tt>join(long)</tt> also allocates the <tt>Alarm</tt>'s record of its
+	 * wake-up time. Once <tt>join()</tt> returns, the result of this thread
+	 * is available from <tt>getResult()</tt>.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 		Lib.assertTrue(this != currentThread);
-		Lib.assertTrue(this.isJoined != true);
 
 		boolean intStatus = Machine.interrupt().disable();
-		// join 
-		this.isJoined = true;
-		this.joinedThread = currentThread();
-		
-		if(this.status != statusFinished) {
+
+		if (status != statusFinished) {
+			addJoiner(currentThread);
 			KThread.sleep();
 		}
 
 		Machine.interrupt().restore(intStatus);
-		
+	}
+
+	/**
+	 * Waits at most <i>timeout</i> ticks for this thread to finish, using the
+	 * kernel's <tt>Alarm</tt>. This thread must not be the current thread.
+	 * 
+	 * @param timeout the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if this thread has finished, in which case its
+	 * result is available from <tt>getResult()</tt>.
+	 */
+	public boolean join(long timeout) {
+		Lib.debug(dbgThread, "Joining to thread: " + toString()
+				+ " for " + timeout + " ticks");
+		Lib.assertTrue(this != currentThread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (status != statusFinished && timeout > 0) {
+			KThread joiner = currentThread;
+			addJoiner(joiner);
+			joiner.joinTimed = true;
+
+			ThreadedKernel.alarm.waitUntil(timeout);
+
+			// still linked if the alarm went off before this thread finished
+			if (joiner.joinTarget == this)
+				removeJoiner(joiner);
+			joiner.joinTimed = false;
+		}
+
+		boolean finished = (status == statusFinished);
+
+		Machine.interrupt().restore(intStatus);
+
+		return finished;
+	}
+
+	/**
+	 * Return the result of this thread. This thread must have finished.
+	 * 
+	 * @return the result set by <tt>finish(int)</tt> or returned by this
+	 * thread's <tt>IntSupplier</tt> target; zero otherwise.
+	 */
+	public int getResult() {
+		Lib.assertTrue(status == statusFinished);
+
+		return result;
+	}
+
+	private void addJoiner(KThread joiner) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(joiner.joinTarget == null);
+
+		joiner.joinTarget = this;
+		joiner.nextJoiner = firstJoiner;
+		firstJoiner = joiner;
+	}
+
+	private void removeJoiner(KThread joiner) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread prev = null;
+		for (KThread t = firstJoiner; t != null; prev = t, t = t.nextJoiner) {
+			if (t == joiner) {
+				if (prev == null)
+					firstJoiner = t.nextJoiner;
+				else
+					prev.nextJoiner = t.nextJoiner;
+				break;
+			}
+		}
+
+		joiner.joinTarget = null;
+		joiner.nextJoiner = null;
+	}
+
+	/**
+	 * Wake every thread waiting in <tt>join()</tt> on this thread. Timed
+	 * joiners are also asleep in the alarm, so they are woken by cancelling
+	 * their timer instead; if the timer has already gone off, the joiner is
+	 * on the ready queue and must not be readied again.
+	 */
+	private void wakeJoiners() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread joiner = firstJoiner;
+		firstJoiner = null;
+
+		while (joiner != null) {
+			KThread next = joiner.nextJoiner;
+			joiner.joinTarget = null;
+			joiner.nextJoiner = null;
+
+			if (joiner.joinTimed)
+				ThreadedKernel.alarm.cancel(joiner);
+			else
+				joiner.ready();
+
+			joiner = next;
+		}
 	}
 
 	/**
@@ -438,6 +568,10 @@ public class KThread {
 		joinTest3();
 		System.out.println();
 		joinTest3();
+		System.out.println();
+		joinTest5();
+		System.out.println();
+		joinTest6();
 	}
 
     public static void joinTest1 () {
@@ -543,6 +677,60 @@ public class KThread {
 	} 
 
 
+	public static void joinTest5() {
+		System.out.println("Running multi-joiner test for KThread");
+		final KThread child = new KThread(new IntSupplier() {
+			public int getAsInt() {
+				for (int i = 0; i < 5; i++)
+					KThread.yield();
+				return 42;
+			}
+		}).setName("child");
+
+		KThread[] joiners = new KThread[3];
+		for (int i = 0; i < joiners.length; i++) {
+			joiners[i] = new KThread(new IntSupplier() {
+				public int getAsInt() {
+					child.join();
+					return child.getResult();
+				}
+			}).setName("joiner" + i);
+			joiners[i].fork();
+		}
+
+		child.fork();
+
+		for (int i = 0; i < joiners.length; i++) {
+			joiners[i].join();
+			int result = joiners[i].getResult();
+			Lib.assertTrue(result == 42, "joiner" + i + " got " + result);
+		}
+		child.join();
+		Lib.assertTrue(child.getResult() == 42, "Second join should return");
+		System.out.println("All joiners received result " + child.getResult());
+	}
+
+	public static void joinTest6() {
+		System.out.println("Running timed join test for KThread");
+		KThread sleeper = new KThread(new IntSupplier() {
+			public int getAsInt() {
+				ThreadedKernel.alarm.waitUntil(5000);
+				return 7;
+			}
+		}).setName("sleeper");
+		sleeper.fork();
+
+		long t0 = Machine.timer().getTime();
+		boolean finished = sleeper.join(1000);
+		long t1 = Machine.timer().getTime();
+		Lib.assertTrue(!finished, "Timed join should have timed out");
+		System.out.println("Timed join gave up after " + (t1 - t0) + " ticks");
+
+		Lib.assertTrue(sleeper.join(100000), "Timed join should succeed");
+		Lib.assertTrue(sleeper.getResult() == 7);
+		System.out.println("Timed join returned result " + sleeper.getResult());
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -573,6 +761,11 @@ public class KThread {
 
 	private Runnable target;
 
+	private IntSupplier resultTarget;
+
+	/** The value returned to threads that join this one. */
+	private int result = 0;
+
 	private TCB tcb;
 
 	/**
@@ -591,7 +784,16 @@ public class KThread {
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
-	
-	private KThread joinedThread = null;
-	private boolean isJoined = false;
+
+	/** The first thread waiting in <tt>join()</tt> for this thread. */
+	private KThread firstJoiner = null;
+
+	/** The next thread waiting for the same thread as this one. */
+	private KThread nextJoiner = null;
+
+	/** The thread this thread is waiting to join, if any. */
+	private KThread joinTarget = null;
+
+	/** <tt>true</tt> if this thread is also asleep in the alarm. */
+	private boolean joinTimed = false;
 }
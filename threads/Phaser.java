@@ -0,0 +1,195 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Phaser</tt> is a reusable barrier whose number of parties may change
+ * over time. Threads <tt>register()</tt> to take part, <tt>arrive()</tt> at the
+ * end of each phase (optionally waiting for the others), and may
+ * <tt>arriveAndDeregister()</tt> when they have no more work to do. When the
+ * last registered party arrives, the phase number advances and all threads
+ * waiting for that phase are released.
+ */
+public class Phaser {
+	/**
+	 * Allocate a new phaser with no registered parties.
+	 */
+	public Phaser() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new phaser.
+	 *
+	 * @param parties the number of parties initially registered.
+	 */
+	public Phaser(int parties) {
+		Lib.assertTrue(parties >= 0);
+
+		this.parties = parties;
+		this.unarrived = parties;
+	}
+
+	/**
+	 * Add a new unarrived party to this phaser.
+	 *
+	 * @return the current phase number.
+	 */
+	public int register() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		parties++;
+		unarrived++;
+		int result = phase;
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Arrive at this phaser without waiting for the other parties.
+	 *
+	 * @return the phase number that was arrived at.
+	 */
+	public int arrive() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int result = doArrive(false);
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Arrive at this phaser and deregister from it, without waiting for the
+	 * other parties.
+	 *
+	 * @return the phase number that was arrived at.
+	 */
+	public int arriveAndDeregister() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int result = doArrive(true);
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Arrive at this phaser and wait for the other parties to arrive.
+	 *
+	 * @return the new phase number.
+	 */
+	public int arriveAndAwaitAdvance() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int arrivedPhase = doArrive(false);
+		if (phase == arrivedPhase) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+		int result = phase;
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Wait for this phaser to advance from the specified phase. Returns
+	 * immediately if the current phase is different.
+	 *
+	 * @param phase the phase to wait on.
+	 * @return the phase number after waiting.
+	 */
+	public int awaitAdvance(int phase) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (this.phase == phase) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+		int result = this.phase;
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Return the current phase number.
+	 *
+	 * @return the current phase number.
+	 */
+	public int getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Return the number of parties registered with this phaser.
+	 *
+	 * @return the number of registered parties.
+	 */
+	public int getRegisteredParties() {
+		return parties;
+	}
+
+	private int doArrive(boolean deregister) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(unarrived > 0, "arrive() without a registered party");
+
+		int arrivedPhase = phase;
+
+		if (deregister)
+			parties--;
+
+		if (--unarrived == 0) {
+			phase++;
+			unarrived = parties;
+
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		return arrivedPhase;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final Phaser phaser = new Phaser(1);
+		final int[] work = new int[1];
+
+		for (int i = 0; i < 3; i++) {
+			final int rounds = i + 1;
+			phaser.register();
+			new KThread(new Runnable() {
+				public void run() {
+					for (int round = 0; round < rounds; round++) {
+						work[0]++;
+						phaser.arriveAndAwaitAdvance();
+					}
+					phaser.arriveAndDeregister();
+				}
+			}).setName("phaser" + i).fork();
+		}
+
+		// main takes part in every phase until only it is left
+		int phase = phaser.getPhase();
+		while (phaser.getRegisteredParties() > 1)
+			phase = phaser.arriveAndAwaitAdvance();
+
+		Lib.assertTrue(work[0] == 1 + 2 + 3);
+		System.out.println("Phaser: reached phase " + phase
+				+ " after all workers deregistered");
+	}
+
+	private int parties;
+
+	private int unarrived;
+
+	private int phase = 0;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
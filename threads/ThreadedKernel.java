@@ -32,7 +32,7 @@ public class ThreadedKernel extends Kernel {
 			fileSystem = null;
 
 		// start threading
-		new KThread(null);
+		new KThread((Runnable) null);
 
 		alarm = new Alarm();
 
@@ -55,6 +55,10 @@ public class ThreadedKernel extends Kernel {
 		Alarm.selfTest();
 		Rendezvous.selfTest();
 		Condition2.selfTest();
+		Barrier.selfTest();
+		CountDownLatch.selfTest();
+		Phaser.selfTest();
+		ForkJoinPool.selfTest();
 	}
 
 	/**
@@ -0,0 +1,302 @@
+package nachos.userprog;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel-wide cache of parsed COFF executables. The first time a program is
+ * loaded, its headers are parsed by <tt>Coff</tt> as usual and the contents of
+ * every section are read into kernel memory with a single read. Later loads
+ * of the same file get a <tt>Coff</tt> built from the cached image, so
+ * neither opening the file nor parsing it nor loading its pages touches the
+ * file system.
+ *
+ * <p>
+ * Images are kept in least-recently-used order and evicted once their total
+ * size exceeds a fixed bound. The file system has no modification times, so
+ * an image is instead dropped whenever the kernel creates, writes or removes
+ * a file of the same name on behalf of a user process, or writes back a page
+ * of it that a process has mapped (see <tt>invalidate()</tt>).
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new, empty cache.
+	 *
+	 * @param maxBytes the largest total size of the cached images.
+	 */
+	public CoffCache(int maxBytes) {
+		Lib.assertTrue(maxBytes >= 0);
+
+		this.maxBytes = maxBytes;
+		lock = new Lock();
+	}
+
+	/**
+	 * Return a loader for the executable with the specified name, from the
+	 * cache if possible. The caller owns the result and must
+	 * <tt>close()</tt> it, as with a <tt>Coff</tt> it constructed itself.
+	 *
+	 * @param name the name of the executable file.
+	 * @return a loader for the executable, or <tt>null</tt> if the file does
+	 * not exist or is not a valid executable.
+	 */
+	public Coff open(String name) {
+		lock.acquire();
+		Image image = images.get(name);
+		int generation = generationOf(name);
+		lock.release();
+
+		if (image != null) {
+			hits++;
+			Lib.debug(dbgCoffCache, "CoffCache: hit " + name);
+			return new CachedCoff(image);
+		}
+
+		misses++;
+		Lib.debug(dbgCoffCache, "CoffCache: miss " + name);
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable == null)
+			return null;
+
+		Coff coff;
+		try {
+			coff = new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			return null;
+		}
+
+		if (executable.length() > maxBytes)
+			return coff;
+
+		image = readImage(executable, coff);
+		if (image == null)
+			return coff;
+
+		lock.acquire();
+		// leave the image out if the file changed while it was being read
+		if (generationOf(name) == generation) {
+			Image previous = images.put(name, image);
+			if (previous != null)
+				totalBytes -= previous.bytes;
+			totalBytes += image.bytes;
+			trim();
+		}
+		lock.release();
+
+		coff.close();
+		return new CachedCoff(image);
+	}
+
+	/**
+	 * Drop the cached image of a file, if there is one, because the file may
+	 * have changed, and start a new generation of the file. Call it after the
+	 * change, so that a load that read the old contents cannot cache them
+	 * again.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+		Image image = images.remove(name);
+		if (image != null)
+			totalBytes -= image.bytes;
+		if (generations.containsKey(name))
+			generations.put(name, ++lastGeneration);
+		lock.release();
+	}
+
+	/**
+	 * Return the generation of a file, which changes whenever the file is
+	 * invalidated. Anything derived from the file's contents, such as a page
+	 * of its text already in memory, may be shared only by processes that
+	 * loaded the same generation; a process must therefore ask before it
+	 * opens the file.
+	 *
+	 * @param name the name of the file.
+	 * @return the file's current generation.
+	 */
+	public int getGeneration(String name) {
+		lock.acquire();
+		int generation = generationOf(name);
+		lock.release();
+
+		return generation;
+	}
+
+	/**
+	 * Return the number of loads satisfied from the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of loads that had to read the file system.
+	 *
+	 * @return the number of misses.
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the generation of a file, tracking it from now on if it is not
+	 * already tracked. Only files that processes have loaded, or tried to,
+	 * need a generation, so other files never enter <tt>generations</tt>.
+	 */
+	private int generationOf(String name) {
+		Integer generation = generations.get(name);
+		if (generation == null) {
+			generations.put(name, 0);
+			return 0;
+		}
+		return generation;
+	}
+
+	/**
+	 * Read the contents of every initialized section of an executable that
+	 * <i>coff</i> has already parsed and validated. The section table is read
+	 * again from the image, because <tt>CoffSection</tt> does not expose where
+	 * its contents lie in the file.
+	 */
+	private Image readImage(OpenFile executable, Coff coff) {
+		byte[] file = new byte[executable.length()];
+		if (executable.read(0, file, 0, file.length) != file.length)
+			return null;
+
+		int numSections = coff.getNumSections();
+		int optionalHeaderLength = Lib.bytesToUnsignedShort(file, 16);
+		int tableOffset = headerLength + optionalHeaderLength;
+
+		Image image = new Image();
+		image.entryPoint = coff.getEntryPoint();
+		image.sections = new CoffSection[numSections];
+		image.executable = new boolean[numSections];
+		image.contents = new byte[numSections][];
+		image.bytes = file.length;
+
+		for (int s = 0; s < numSections; s++) {
+			CoffSection section = coff.getSection(s);
+			int entry = tableOffset + s * CoffSection.headerLength;
+			int size = Lib.bytesToInt(file, entry + 16);
+			int contentOffset = Lib.bytesToInt(file, entry + 20);
+			int flags = Lib.bytesToInt(file, entry + 36);
+
+			image.sections[s] = section;
+			image.executable[s] = (flags & 0x0FFF) == 0x0020;
+			if (section.isInitialzed())
+				image.contents[s] = Arrays.copyOfRange(file, contentOffset,
+						contentOffset + size);
+		}
+
+		return image;
+	}
+
+	private void trim() {
+		Iterator<Image> i = images.values().iterator();
+		while (totalBytes > maxBytes && i.hasNext()) {
+			totalBytes -= i.next().bytes;
+			i.remove();
+		}
+	}
+
+	/**
+	 * Everything needed to rebuild a loader without the file: the metadata of
+	 * the original sections and the contents of the initialized ones.
+	 */
+	private static class Image {
+		int entryPoint;
+
+		CoffSection[] sections;
+
+		boolean[] executable;
+
+		byte[][] contents;
+
+		int bytes;
+	}
+
+	private static class CachedCoff extends Coff {
+		CachedCoff(Image image) {
+			entryPoint = image.entryPoint;
+			sections = new CoffSection[image.sections.length];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = new CachedSection(this, image.sections[s],
+						image.executable[s], image.contents[s]);
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		public void close() {
+			sections = null;
+		}
+	}
+
+	private static class CachedSection extends CoffSection {
+		CachedSection(Coff coff, CoffSection original, boolean executable,
+				byte[] contents) {
+			super(coff, original.getName(), executable, original.isReadOnly(),
+					original.getLength(), original.getFirstVPN());
+
+			this.initialized = original.isInitialzed();
+			this.contents = contents;
+		}
+
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn >= 0 && spn < numPages);
+			Lib.assertTrue(ppn >= 0
+					&& ppn < Machine.processor().getNumPhysPages());
+
+			int pageSize = Processor.pageSize;
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn * pageSize;
+
+			int initlen = 0;
+			if (contents != null)
+				initlen = Math.max(0, Math.min(pageSize, contents.length - spn
+						* pageSize));
+
+			if (initlen > 0)
+				System.arraycopy(contents, spn * pageSize, memory, paddr,
+						initlen);
+			Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		}
+
+		private byte[] contents;
+	}
+
+	private int maxBytes;
+
+	private int totalBytes = 0;
+
+	private int hits = 0, misses = 0;
+
+	private Lock lock;
+
+	/** Cached images by file name, least recently used first. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	/** The generation of each file that a process has loaded or tried to. */
+	private HashMap<String, Integer> generations = new HashMap<String, Integer>();
+
+	private int lastGeneration = 0;
+
+	/** The length of a COFF file header. */
+	private static final int headerLength = 20;
+
+	private static final char dbgCoffCache = 'c';
+}
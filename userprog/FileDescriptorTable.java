@@ -0,0 +1,298 @@
+package nachos.userprog;
+
+import java.util.HashMap;
+
+import nachos.machine.*;
+
+/**
+ * The file descriptor table of a user process. A descriptor is a small,
+ * non-negative integer that indexes an <tt>OpenFile</tt>.
+ *
+ * <p>
+ * The table starts small and doubles on demand up to a fixed limit. A bitmap
+ * of used slots, one bit per descriptor, lets <tt>allocate()</tt> find the
+ * lowest free descriptor by examining one word per 64 descriptors, starting
+ * from the first word known to have a free slot.
+ *
+ * <p>
+ * Several descriptors, in one process or in many, may refer to the same
+ * <tt>OpenFile</tt> (see <tt>dup()</tt>). The file is only closed when the
+ * last descriptor referring to it is closed, so every table shares one
+ * kernel-wide reference count per file.
+ */
+public class FileDescriptorTable {
+	/**
+	 * Allocate a new, empty descriptor table.
+	 *
+	 * @param maxFiles the largest number of descriptors this table may hold.
+	 */
+	public FileDescriptorTable(int maxFiles) {
+		Lib.assertTrue(maxFiles > 0);
+
+		this.maxFiles = maxFiles;
+
+		int initialSize = Math.min(initialFiles, maxFiles);
+		files = new OpenFile[initialSize];
+		usedBits = new long[Lib.divRoundUp(initialSize, 64)];
+	}
+
+	/**
+	 * Return the file referred to by a descriptor.
+	 *
+	 * @param fd the descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	public OpenFile get(int fd) {
+		if (fd < 0 || fd >= files.length)
+			return null;
+
+		return files[fd];
+	}
+
+	/**
+	 * Install a file at the lowest free descriptor, growing the table if it is
+	 * full. The table takes over the caller's reference to <i>file</i>.
+	 *
+	 * @param file the file to install.
+	 * @return the new descriptor, or -1 if the table is at its limit.
+	 */
+	public int allocate(OpenFile file) {
+		Lib.assertTrue(file != null);
+
+		int fd = findFree();
+		if (fd == -1)
+			return -1;
+
+		install(fd, file);
+		return fd;
+	}
+
+	/**
+	 * Close a descriptor. The underlying file is closed if this was its last
+	 * descriptor.
+	 *
+	 * @param fd the descriptor to close.
+	 * @return 0 on success, or -1 if <i>fd</i> is not open.
+	 */
+	public int close(int fd) {
+		OpenFile file = get(fd);
+		if (file == null)
+			return -1;
+
+		files[fd] = null;
+		usedBits[fd / 64] &= ~(1L << (fd % 64));
+		if (fd / 64 < firstFreeWord)
+			firstFreeWord = fd / 64;
+
+		release(file);
+		return 0;
+	}
+
+	/**
+	 * Close every open descriptor.
+	 */
+	public void closeAll() {
+		for (int fd = 0; fd < files.length; fd++) {
+			if (files[fd] != null)
+				close(fd);
+		}
+	}
+
+	/**
+	 * Make a new descriptor, the lowest available, that refers to the same
+	 * file as <i>fd</i>.
+	 *
+	 * @param fd the descriptor to duplicate.
+	 * @return the new descriptor, or -1 on error.
+	 */
+	public int dup(int fd) {
+		OpenFile file = get(fd);
+		if (file == null)
+			return -1;
+
+		int newFd = findFree();
+		if (newFd == -1)
+			return -1;
+
+		reference(file);
+		install(newFd, file);
+		return newFd;
+	}
+
+	/**
+	 * Make <i>newFd</i> refer to the same file as <i>oldFd</i>, closing
+	 * <i>newFd</i> first if it is open.
+	 *
+	 * @param oldFd the descriptor to duplicate.
+	 * @param newFd the descriptor to replace.
+	 * @return <i>newFd</i>, or -1 on error.
+	 */
+	public int dup2(int oldFd, int newFd) {
+		OpenFile file = get(oldFd);
+		if (file == null || newFd < 0 || newFd >= maxFiles)
+			return -1;
+
+		if (oldFd == newFd)
+			return newFd;
+
+		if (newFd >= files.length)
+			grow(newFd + 1);
+
+		reference(file);
+		close(newFd);
+		install(newFd, file);
+		return newFd;
+	}
+
+	/**
+	 * Make descriptor <i>fd</i> of this table refer to the same file as
+	 * descriptor <i>fd</i> of <i>parent</i>, closing whatever it referred to
+	 * before. Used to pass standard input and output on to a child process.
+	 *
+	 * @param parent the table to inherit from.
+	 * @param fd the descriptor to inherit.
+	 */
+	public void inherit(FileDescriptorTable parent, int fd) {
+		OpenFile file = parent.get(fd);
+		if (file == null || fd >= maxFiles)
+			return;
+
+		reference(file);
+		close(fd);
+		if (fd >= files.length)
+			grow(fd + 1);
+		install(fd, file);
+	}
+
+	/**
+	 * Make this table a copy of <i>other</i>: every open descriptor in
+	 * <i>other</i> is opened at the same number here, sharing the same file.
+	 * This table must be empty.
+	 *
+	 * @param other the table to copy.
+	 */
+	public void copyFrom(FileDescriptorTable other) {
+		for (int fd = 0; fd < other.files.length; fd++) {
+			OpenFile file = other.files[fd];
+			if (file == null || fd >= maxFiles)
+				continue;
+
+			Lib.assertTrue(get(fd) == null);
+			if (fd >= files.length)
+				grow(fd + 1);
+
+			reference(file);
+			install(fd, file);
+		}
+	}
+
+	/**
+	 * Return the largest number of descriptors this table may hold.
+	 *
+	 * @return the descriptor limit.
+	 */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	/**
+	 * Add a kernel-wide reference to a file that is about to be installed in
+	 * a descriptor table. Must be balanced by the descriptor being closed.
+	 *
+	 * @param file the file being shared.
+	 */
+	public static void reference(OpenFile file) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Integer count = refCounts.get(file);
+		refCounts.put(file, count == null ? 2 : count + 1);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void release(OpenFile file) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Integer count = refCounts.get(file);
+		boolean last = (count == null);
+		if (count != null) {
+			if (count == 2)
+				refCounts.remove(file);
+			else
+				refCounts.put(file, count - 1);
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		if (last)
+			file.close();
+	}
+
+	private void install(int fd, OpenFile file) {
+		Lib.assertTrue(files[fd] == null);
+
+		files[fd] = file;
+		usedBits[fd / 64] |= 1L << (fd % 64);
+	}
+
+	private int findFree() {
+		for (int word = firstFreeWord; word < usedBits.length; word++) {
+			long free = ~usedBits[word];
+			if (free != 0) {
+				firstFreeWord = word;
+				int fd = word * 64 + Long.numberOfTrailingZeros(free);
+				if (fd < files.length)
+					return fd;
+				break;
+			}
+		}
+
+		// every slot in the current table is in use
+		firstFreeWord = usedBits.length;
+		if (files.length >= maxFiles)
+			return -1;
+
+		int fd = files.length;
+		grow(fd + 1);
+		return fd;
+	}
+
+	private void grow(int minSize) {
+		Lib.assertTrue(minSize <= maxFiles);
+
+		int newSize = files.length;
+		while (newSize < minSize)
+			newSize = Math.min(newSize * 2, maxFiles);
+
+		OpenFile[] newFiles = new OpenFile[newSize];
+		System.arraycopy(files, 0, newFiles, 0, files.length);
+
+		long[] newBits = new long[Lib.divRoundUp(newSize, 64)];
+		System.arraycopy(usedBits, 0, newBits, 0, usedBits.length);
+
+		// the new slots are free
+		firstFreeWord = Math.min(firstFreeWord, files.length / 64);
+
+		files = newFiles;
+		usedBits = newBits;
+	}
+
+	private OpenFile[] files;
+
+	/** One bit per descriptor, set if the descriptor is open. */
+	private long[] usedBits;
+
+	/** No word before this one has a free descriptor. */
+	private int firstFreeWord = 0;
+
+	private int maxFiles;
+
+	/** The number of descriptors a new table has room for. */
+	private static final int initialFiles = 16;
+
+	/**
+	 * Reference counts of files open in more than one descriptor. A file
+	 * with a single descriptor has no entry.
+	 */
+	private static HashMap<OpenFile, Integer> refCounts = new HashMap<OpenFile, Integer>();
+}
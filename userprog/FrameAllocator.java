@@ -0,0 +1,313 @@
+package nachos.userprog;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * A buddy allocator for physical pages. Free memory is kept as blocks of
+ * <tt>2<sup>k</sup></tt> pages, each aligned to its own size, on one free
+ * list per order <i>k</i>. Allocating takes a block of the right order,
+ * splitting a larger one if necessary; freeing a block merges it with its
+ * buddy for as long as the buddy is also free. Both take time proportional
+ * to the number of orders, which is at most 31.
+ *
+ * <p>
+ * The free lists are threaded through arrays indexed by page number, so no
+ * operation allocates an object, and a bitmap of allocated pages catches
+ * double frees. The allocator is not synchronized: callers hold
+ * <tt>UserKernel.pagesLock</tt>.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new allocator with every page free.
+	 *
+	 * @param numFrames the number of physical pages to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames > 0);
+
+		this.numFrames = numFrames;
+		maxOrder = 31 - Integer.numberOfLeadingZeros(numFrames);
+
+		heads = new int[maxOrder + 1];
+		Arrays.fill(heads, -1);
+		freeBlocks = new int[maxOrder + 1];
+
+		next = new int[numFrames];
+		prev = new int[numFrames];
+		blockOrder = new byte[numFrames];
+		Arrays.fill(blockOrder, notFree);
+
+		allocated = new long[Lib.divRoundUp(numFrames, 64)];
+
+		// carve memory into the largest aligned blocks that fit
+		int ppn = 0;
+		while (ppn < numFrames) {
+			int order = (ppn == 0) ? maxOrder : Math.min(maxOrder,
+					Integer.numberOfTrailingZeros(ppn));
+			while (ppn + (1 << order) > numFrames)
+				order--;
+
+			insert(ppn, order);
+			ppn += 1 << order;
+		}
+		numFree = numFrames;
+	}
+
+	/**
+	 * Allocate a single page.
+	 *
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public int allocate() {
+		return allocateBlock(0);
+	}
+
+	/**
+	 * Allocate <i>count</i> pages that are adjacent in physical memory.
+	 *
+	 * @param count the number of pages.
+	 * @return the first physical page of the run, or -1 if there is no free
+	 * run that long.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		if (count > numFrames)
+			return -1;
+
+		int order = 32 - Integer.numberOfLeadingZeros(count - 1);
+		if (order > maxOrder)
+			return -1;
+
+		int first = allocateBlock(order);
+		if (first == -1)
+			return -1;
+
+		// give back the part of the block that was not asked for
+		int extra = (1 << order) - count;
+		if (extra > 0)
+			free(first + count, extra);
+
+		return first;
+	}
+
+	/**
+	 * Allocate <i>count</i> pages, not necessarily adjacent, all at once.
+	 *
+	 * @param count the number of pages.
+	 * @return the physical page numbers, or <tt>null</tt> if fewer than
+	 * <i>count</i> pages are free, in which case nothing is allocated.
+	 */
+	public int[] allocateBatch(int count) {
+		Lib.assertTrue(count >= 0);
+
+		if (count > numFree)
+			return null;
+
+		int[] frames = new int[count];
+		int filled = 0;
+		while (filled < count) {
+			// take the largest free block no bigger than what is still
+			// needed, so that large blocks are not split needlessly
+			int order = Math.min(maxOrder, 31 - Integer
+					.numberOfLeadingZeros(count - filled));
+			while (order > 0 && heads[order] == -1)
+				order--;
+
+			int first = allocateBlock(order);
+			Lib.assertTrue(first != -1);
+			for (int i = 0; i < (1 << order); i++)
+				frames[filled++] = first + i;
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Free a single page.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void free(int ppn) {
+		freeBlock(ppn, 0);
+	}
+
+	/**
+	 * Free a run of adjacent pages. The pages need not have been allocated
+	 * together.
+	 *
+	 * @param first the first physical page of the run.
+	 * @param count the number of pages.
+	 */
+	public void free(int first, int count) {
+		Lib.assertTrue(first >= 0 && count >= 0 && first + count <= numFrames);
+
+		while (count > 0) {
+			int order = Math.min(31 - Integer.numberOfLeadingZeros(count),
+					(first == 0) ? maxOrder : Integer
+							.numberOfTrailingZeros(first));
+			order = Math.min(order, maxOrder);
+
+			freeBlock(first, order);
+			first += 1 << order;
+			count -= 1 << order;
+		}
+	}
+
+	/**
+	 * Return the number of free pages.
+	 *
+	 * @return the number of free pages.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Return the number of free blocks of <tt>2<sup>order</sup></tt> pages.
+	 *
+	 * @param order the block order.
+	 * @return the number of free blocks of that order.
+	 */
+	public int getNumFreeBlocks(int order) {
+		if (order < 0 || order > maxOrder)
+			return 0;
+
+		return freeBlocks[order];
+	}
+
+	/**
+	 * Test whether a page is allocated.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page is allocated.
+	 */
+	public boolean isAllocated(int ppn) {
+		return (allocated[ppn / 64] & (1L << (ppn % 64))) != 0;
+	}
+
+	private int allocateBlock(int order) {
+		int k = order;
+		while (k <= maxOrder && heads[k] == -1)
+			k++;
+		if (k > maxOrder)
+			return -1;
+
+		int block = heads[k];
+		remove(block, k);
+
+		// split, putting the upper half of each split back
+		while (k > order) {
+			k--;
+			insert(block + (1 << k), k);
+		}
+
+		for (int i = 0; i < (1 << order); i++) {
+			Lib.assertTrue(!isAllocated(block + i));
+			allocated[(block + i) / 64] |= 1L << ((block + i) % 64);
+		}
+		numFree -= 1 << order;
+
+		return block;
+	}
+
+	private void freeBlock(int block, int order) {
+		Lib.assertTrue(block >= 0 && block + (1 << order) <= numFrames);
+
+		for (int i = 0; i < (1 << order); i++) {
+			Lib.assertTrue(isAllocated(block + i), "page " + (block + i)
+					+ " freed twice");
+			allocated[(block + i) / 64] &= ~(1L << ((block + i) % 64));
+		}
+		numFree += 1 << order;
+
+		while (order < maxOrder) {
+			int buddy = block ^ (1 << order);
+			if (buddy + (1 << order) > numFrames || blockOrder[buddy] != order)
+				break;
+
+			remove(buddy, order);
+			block &= ~(1 << order);
+			order++;
+		}
+
+		insert(block, order);
+	}
+
+	private void insert(int block, int order) {
+		blockOrder[block] = (byte) order;
+		prev[block] = -1;
+		next[block] = heads[order];
+		if (heads[order] != -1)
+			prev[heads[order]] = block;
+		heads[order] = block;
+		freeBlocks[order]++;
+	}
+
+	private void remove(int block, int order) {
+		if (prev[block] != -1)
+			next[prev[block]] = next[block];
+		else
+			heads[order] = next[block];
+		if (next[block] != -1)
+			prev[next[block]] = prev[block];
+
+		blockOrder[block] = notFree;
+		freeBlocks[order]--;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		FrameAllocator frames = new FrameAllocator(100);
+
+		int run = frames.allocateContiguous(13);
+		int[] batch = frames.allocateBatch(80);
+		Lib.assertTrue(run != -1 && batch != null);
+		Lib.assertTrue(frames.getNumFree() == 100 - 13 - 80);
+		Lib.assertTrue(frames.allocateBatch(8) == null);
+
+		for (int i = 0; i < 13; i++)
+			Lib.assertTrue(frames.isAllocated(run + i));
+		for (int i = 0; i < batch.length; i++) {
+			Lib.assertTrue(batch[i] < run || batch[i] >= run + 13);
+			frames.free(batch[i]);
+		}
+		frames.free(run, 13);
+
+		// everything should have merged back into the original blocks
+		Lib.assertTrue(frames.getNumFree() == 100);
+		Lib.assertTrue(frames.getNumFreeBlocks(6) == 1
+				&& frames.getNumFreeBlocks(5) == 1
+				&& frames.getNumFreeBlocks(2) == 1);
+		Lib.assertTrue(frames.allocateContiguous(64) == 0);
+
+		System.out.println("FrameAllocator: split and merged 100 pages");
+	}
+
+	private int numFrames;
+
+	private int maxOrder;
+
+	private int numFree;
+
+	/** The first free block of each order, or -1. */
+	private int[] heads;
+
+	/** The number of free blocks of each order. */
+	private int[] freeBlocks;
+
+	/** Free list links, valid for the first page of each free block. */
+	private int[] next, prev;
+
+	/** The order of the free block starting at each page, or notFree. */
+	private byte[] blockOrder;
+
+	/** One bit per page, set if the page is allocated. */
+	private long[] allocated;
+
+	private static final byte notFree = -1;
+}
@@ -0,0 +1,236 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way stream between processes, backed by a bounded ring buffer in
+ * kernel memory. A pipe has two ends, each an <tt>OpenFile</tt>: bytes written
+ * to <tt>getWriteEnd()</tt> can be read, in order, from <tt>getReadEnd()</tt>.
+ *
+ * <p>
+ * Unlike the console, both ends block: a read waits until at least one byte is
+ * available, and a write waits until all of its bytes fit in the buffer. A
+ * read returns 0 (end of file) once the buffer is empty and the write end has
+ * been closed; a write fails once the read end has been closed.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new pipe with the default capacity.
+	 */
+	public Pipe() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Allocate a new pipe.
+	 *
+	 * @param capacity the number of bytes the pipe can hold before writers
+	 * block.
+	 */
+	public Pipe(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new byte[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+
+		readEnd = new ReadEnd();
+		writeEnd = new WriteEnd();
+	}
+
+	/**
+	 * Return the end of this pipe that can be read.
+	 *
+	 * @return the read end.
+	 */
+	public OpenFile getReadEnd() {
+		return readEnd;
+	}
+
+	/**
+	 * Return the end of this pipe that can be written.
+	 *
+	 * @return the write end.
+	 */
+	public OpenFile getWriteEnd() {
+		return writeEnd;
+	}
+
+	private int read(byte[] buf, int offset, int length) {
+		if (length == 0)
+			return 0;
+
+		lock.acquire();
+
+		while (count == 0 && writerOpen)
+			notEmpty.sleep();
+
+		int amount = Math.min(length, count);
+
+		// copy out in at most two pieces, since the data may wrap around
+		int first = Math.min(amount, buffer.length - head);
+		System.arraycopy(buffer, head, buf, offset, first);
+		System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+
+		head = (head + amount) % buffer.length;
+		count -= amount;
+
+		if (amount > 0)
+			notFull.wakeAll();
+
+		lock.release();
+
+		return amount;
+	}
+
+	private int write(byte[] buf, int offset, int length) {
+		lock.acquire();
+
+		int written = 0;
+		while (written < length && readerOpen) {
+			while (count == buffer.length && readerOpen)
+				notFull.sleep();
+
+			if (!readerOpen)
+				break;
+
+			int amount = Math.min(length - written, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+
+			int first = Math.min(amount, buffer.length - tail);
+			System.arraycopy(buf, offset + written, buffer, tail, first);
+			System.arraycopy(buf, offset + written + first, buffer, 0, amount
+					- first);
+
+			count += amount;
+			written += amount;
+
+			notEmpty.wakeAll();
+		}
+
+		lock.release();
+
+		if (written == 0 && length > 0)
+			return -1;
+
+		return written;
+	}
+
+	private void closeEnd(boolean reader) {
+		lock.acquire();
+
+		if (reader)
+			readerOpen = false;
+		else
+			writerOpen = false;
+
+		notEmpty.wakeAll();
+		notFull.wakeAll();
+
+		lock.release();
+	}
+
+	private class ReadEnd extends OpenFile {
+		ReadEnd() {
+			super(null, "pipe");
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return Pipe.this.read(buf, offset, length);
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				closeEnd(true);
+			}
+		}
+
+		private boolean open = true;
+	}
+
+	private class WriteEnd extends OpenFile {
+		WriteEnd() {
+			super(null, "pipe");
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return Pipe.this.write(buf, offset, length);
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				closeEnd(false);
+			}
+		}
+
+		private boolean open = true;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final Pipe pipe = new Pipe(7);
+		final int total = 100;
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				OpenFile out = pipe.getWriteEnd();
+				byte[] data = new byte[10];
+				for (int sent = 0; sent < total; sent += data.length) {
+					for (int i = 0; i < data.length; i++)
+						data[i] = (byte) (sent + i);
+					Lib.assertTrue(out.write(data, 0, data.length) == data.length);
+				}
+				out.close();
+			}
+		}).setName("pipe writer");
+		writer.fork();
+
+		OpenFile in = pipe.getReadEnd();
+		byte[] data = new byte[3];
+		int received = 0;
+		int amount;
+		while ((amount = in.read(data, 0, data.length)) > 0) {
+			for (int i = 0; i < amount; i++)
+				Lib.assertTrue(data[i] == (byte) (received + i),
+						"Pipe delivered bytes out of order");
+			received += amount;
+		}
+		in.close();
+		writer.join();
+
+		Lib.assertTrue(received == total);
+		System.out.println("Pipe: streamed " + received
+				+ " bytes through a 7-byte buffer");
+	}
+
+	private byte[] buffer;
+
+	/** The index of the oldest byte in the buffer. */
+	private int head = 0;
+
+	/** The number of bytes in the buffer. */
+	private int count = 0;
+
+	private boolean readerOpen = true, writerOpen = true;
+
+	private Lock lock;
+
+	private Condition2 notEmpty, notFull;
+
+	private OpenFile readEnd, writeEnd;
+
+	/** The default capacity of a pipe, in bytes. */
+	private static final int defaultCapacity = 4 * Processor.pageSize;
+}
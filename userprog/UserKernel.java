@@ -1,6 +1,7 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -27,13 +28,20 @@ public class UserKernel extends ThreadedKernel {
 
 		console = new SynchConsole(Machine.console());
 
-		freePages = new LinkedList<Integer>();
 		int numPhysPages  = Machine.processor().getNumPhysPages();
-		for(int i = 0; i < numPhysPages; i++) {
-			freePages.add(i);
-		}
+		frameAllocator = new FrameAllocator(numPhysPages);
+		frameShares = new int[numPhysPages];
+		frameTextKeys = new String[numPhysPages];
+		textPages = new HashMap<String, Integer>();
 		pagesLock = new Lock();
+		zeroPoolNotFull = new Condition2(pagesLock);
+		zeroPool = new int[Config.getInteger("UserKernel.zeroPoolSize",
+				Math.min(32, numPhysPages / 16))];
 		PIDLock = new Lock();
+		maxOpenFiles = Config.getInteger("UserProcess.maxOpenFiles",
+				maxOpenFiles);
+		coffCache = new CoffCache(Config.getInteger("CoffCache.maxBytes",
+				64 * 1024));
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -47,6 +55,9 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+		Pipe.selfTest();
+		FrameAllocator.selfTest();
+
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
 
@@ -103,6 +114,14 @@ public class UserKernel extends ThreadedKernel {
 	public void run() {
 		super.run();
 
+		if (zeroPool.length > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					zeroPages();
+				}
+			}).setName("page zeroer").fork();
+		}
+
 		UserProcess process = UserProcess.newUserProcess();
 
 		String shellProgram = Machine.getShellProgramName();
@@ -122,6 +141,242 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Record that one more page table maps physical page <i>ppn</i>, as when
+	 * <tt>fork()</tt> shares a page between parent and child. The caller must
+	 * hold <tt>pagesLock</tt>.
+	 * 
+	 * @param ppn the physical page being shared.
+	 */
+	public static void shareFrame(int ppn) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		frameShares[ppn]++;
+	}
+
+	/**
+	 * Drop one page table's mapping of physical page <i>ppn</i>, returning the
+	 * page to <tt>frameAllocator</tt> if no other page table maps it. The caller
+	 * must hold <tt>pagesLock</tt>.
+	 * 
+	 * @param ppn the physical page being released.
+	 * @return <tt>true</tt> if the page was freed.
+	 */
+	public static boolean releaseFrame(int ppn) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		if (frameShares[ppn] > 0) {
+			frameShares[ppn]--;
+			return false;
+		}
+
+		forgetTextPage(ppn);
+		frameAllocator.free(ppn);
+		zeroPoolNotFull.wake();
+		return true;
+	}
+
+	/**
+	 * Allocate a physical page whose contents do not matter, because the
+	 * caller will overwrite all of it. Falls back on the zeroed pool when the
+	 * allocator is empty. The caller must hold <tt>pagesLock</tt>.
+	 * 
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public static int allocateFrame() {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		int ppn = frameAllocator.allocate();
+		if (ppn == -1 && zeroPoolCount > 0)
+			ppn = zeroPool[--zeroPoolCount];
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate a physical page filled with zeros. The page comes from the
+	 * pool kept full by the page zeroing thread if possible, and is only
+	 * zeroed here if the pool is empty. The caller must hold
+	 * <tt>pagesLock</tt>.
+	 * 
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public static int allocateZeroedFrame() {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		if (zeroPoolCount > 0) {
+			zeroPoolNotFull.wake();
+			return zeroPool[--zeroPoolCount];
+		}
+
+		int ppn = frameAllocator.allocate();
+		if (ppn != -1)
+			zeroFrame(ppn);
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate <i>count</i> physical pages whose contents do not matter,
+	 * returning pages from the zeroed pool to the allocator first if that is
+	 * what it takes. The caller must hold <tt>pagesLock</tt>.
+	 * 
+	 * @param count the number of pages.
+	 * @return the physical page numbers, or <tt>null</tt> if there are not
+	 * enough free pages.
+	 */
+	public static int[] allocateFrames(int count) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		while (frameAllocator.getNumFree() < count && zeroPoolCount > 0)
+			frameAllocator.free(zeroPool[--zeroPoolCount]);
+
+		return frameAllocator.allocateBatch(count);
+	}
+
+	/**
+	 * Allocate <i>count</i> physically adjacent pages, the first aligned to
+	 * the smallest power of two no less than <i>count</i>, whose contents do
+	 * not matter. Pages in the zeroed pool are not used, since they are
+	 * scattered. The caller must hold <tt>pagesLock</tt>.
+	 * 
+	 * @param count the number of pages.
+	 * @return the first physical page of the run, or -1 if there is no free
+	 * run that long.
+	 */
+	public static int allocateContiguousFrames(int count) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		return frameAllocator.allocateContiguous(count);
+	}
+
+	/**
+	 * Return the number of physical pages that can be allocated, including
+	 * those in the zeroed pool. The caller must hold <tt>pagesLock</tt>.
+	 * 
+	 * @return the number of free pages.
+	 */
+	public static int getNumFreeFrames() {
+		return frameAllocator.getNumFree() + zeroPoolCount;
+	}
+
+	private static void zeroFrame(int ppn) {
+		int paddr = ppn * Processor.pageSize;
+		Arrays.fill(Machine.processor().getMemory(), paddr, paddr
+				+ Processor.pageSize, (byte) 0);
+	}
+
+	/**
+	 * The body of the page zeroing thread. Keeps <tt>zeroPool</tt> full of
+	 * zeroed free pages, zeroing one page per turn and then yielding, so that
+	 * it mostly runs when nothing else is ready. Sleeps while the pool is full
+	 * or memory is exhausted.
+	 */
+	private static void zeroPages() {
+		pagesLock.acquire();
+		while (true) {
+			while (zeroPoolCount == zeroPool.length
+					|| frameAllocator.getNumFree() == 0)
+				zeroPoolNotFull.sleep();
+
+			int ppn = frameAllocator.allocate();
+
+			// the page is ours, so zero it without holding up others
+			pagesLock.release();
+			zeroFrame(ppn);
+			KThread.yield();
+			pagesLock.acquire();
+
+			zeroPool[zeroPoolCount++] = ppn;
+		}
+	}
+
+	/**
+	 * Take physical page <i>ppn</i> away from every page table that maps it,
+	 * so that it can be reused without passing through
+	 * <tt>frameAllocator</tt>.
+	 * The caller must already have invalidated every mapping, and must hold
+	 * <tt>pagesLock</tt>.
+	 * 
+	 * @param ppn the physical page being reclaimed.
+	 */
+	public static void reclaimFrame(int ppn) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		frameShares[ppn] = 0;
+		forgetTextPage(ppn);
+	}
+
+	/**
+	 * Test whether more than one page table maps physical page <i>ppn</i>.
+	 * 
+	 * @param ppn the physical page.
+	 * @return <tt>true</tt> if the page is shared.
+	 */
+	public static boolean isFrameShared(int ppn) {
+		return frameShares[ppn] > 0;
+	}
+
+	/**
+	 * Find the physical page holding a page of a read-only section, if a
+	 * process running the same executable has already loaded it. The caller
+	 * must hold <tt>pagesLock</tt>, and must <tt>shareFrame()</tt> the page
+	 * before mapping it.
+	 * 
+	 * @param executable the name of the executable.
+	 * @param generation the generation of the executable the process loaded,
+	 * from <tt>CoffCache.getGeneration()</tt>.
+	 * @param section the section number within the executable.
+	 * @param page the page number within the section.
+	 * @return the physical page number, or -1 if the page is not loaded.
+	 */
+	public static int findTextPage(String executable, int generation,
+			int section, int page) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		Integer ppn = textPages.get(textPageKey(executable, generation,
+				section, page));
+		return (ppn == null) ? -1 : ppn;
+	}
+
+	/**
+	 * Record that physical page <i>ppn</i> holds a page of a read-only
+	 * section, so that other processes running the same executable can map it
+	 * instead of loading their own copy. The entry is dropped when the page is
+	 * freed or reclaimed, and is no longer found once the executable changes
+	 * and so starts a new generation. The caller must hold
+	 * <tt>pagesLock</tt>.
+	 * 
+	 * @param executable the name of the executable.
+	 * @param generation the generation of the executable the process loaded.
+	 * @param section the section number within the executable.
+	 * @param page the page number within the section.
+	 * @param ppn the physical page holding it.
+	 */
+	public static void addTextPage(String executable, int generation,
+			int section, int page, int ppn) {
+		Lib.assertTrue(pagesLock.isHeldByCurrentThread());
+
+		String key = textPageKey(executable, generation, section, page);
+		textPages.put(key, ppn);
+		frameTextKeys[ppn] = key;
+	}
+
+	private static void forgetTextPage(int ppn) {
+		if (frameTextKeys[ppn] != null) {
+			// the key may already name a newer copy of the page
+			Integer current = textPages.get(frameTextKeys[ppn]);
+			if (current != null && current == ppn)
+				textPages.remove(frameTextKeys[ppn]);
+			frameTextKeys[ppn] = null;
+		}
+	}
+
+	private static String textPageKey(String executable, int generation,
+			int section, int page) {
+		return executable + ":" + generation + ":" + section + ":" + page;
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -131,14 +386,50 @@ public class UserKernel extends ThreadedKernel {
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
+
+	/**
+	 * Parsed executables shared by every process, bounded by the
+	 * <tt>nachos.conf</tt> key <tt>CoffCache.maxBytes</tt>.
+	 */
+	public static CoffCache coffCache;
 	
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	public static  LinkedList<Integer> freePages;
+	/** The free physical pages, guarded by <tt>pagesLock</tt>. */
+	public static  FrameAllocator frameAllocator;
 	public static  Lock pagesLock;
 	public static  Lock PIDLock;
 
+	/**
+	 * For each physical page, the number of page tables mapping it beyond the
+	 * first. Zero for a page that is free or has a single owner.
+	 */
+	private static int[] frameShares;
+
+	/**
+	 * Read-only section pages currently in memory, keyed by executable,
+	 * generation, section and page, and for each physical page the key it is filed under,
+	 * if any.
+	 */
+	private static HashMap<String, Integer> textPages;
+	private static String[] frameTextKeys;
+
+	/**
+	 * Free pages that have already been zeroed, taken from
+	 * <tt>frameAllocator</tt> by the page zeroing thread. Its size is set by
+	 * the <tt>nachos.conf</tt> key <tt>UserKernel.zeroPoolSize</tt>.
+	 */
+	private static int[] zeroPool;
+	private static int zeroPoolCount = 0;
+	private static Condition2 zeroPoolNotFull;
+
+	/**
+	 * The largest number of file descriptors a process may have open, set by
+	 * the <tt>nachos.conf</tt> key <tt>UserProcess.maxOpenFiles</tt>.
+	 */
+	public static int maxOpenFiles = 256;
+
 	public static int processNum = 0;
 	public static int totalProcesses = 0;
 	public static int generatePID = 0;
@@ -4,10 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
-import java.io.EOFException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -31,11 +29,10 @@ public class UserProcess {
 		// for (int i = 0; i < numPhysPages; i++) {
 		// 	pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
 		// }
-		fileTable = new OpenFile[16];
-		fileTable[0] = UserKernel.console.openForReading();
-		fileTable[1] = UserKernel.console.openForWriting();
+		fileTable = new FileDescriptorTable(UserKernel.maxOpenFiles);
+		fileTable.allocate(UserKernel.console.openForReading());
+		fileTable.allocate(UserKernel.console.openForWriting());
 
-		pagesUsed = new LinkedList<Integer>();
 		UserKernel.PIDLock.acquire();
 		PID = UserKernel.generatePID;
 		UserKernel.generatePID++;
@@ -279,9 +276,10 @@ public class UserProcess {
 			if(base_vaddr >= numPages * pageSize || base_vaddr >= memory.length)
 				break;
 			int vpn = Processor.pageFromAddress(base_vaddr), baseaddr_offset = Processor.offsetFromAddress(base_vaddr);
-			int ppn = pageTable[vpn].ppn;
 			int nextbase_vaddr = (vpn + 1) * pageSize;
-			if(pageTable[vpn].valid == false || pageTable[vpn].readOnly) break;
+			if(pageTable[vpn].valid == false) break;
+			if(pageTable[vpn].readOnly && !breakCopyOnWrite(vpn)) break;
+			int ppn = pageTable[vpn].ppn;
 			if(nextbase_vaddr < (vaddr + length) && nextbase_vaddr < numPages*pageSize) {
 				amount = nextbase_vaddr  - base_vaddr;
 			}
@@ -312,20 +310,14 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		executableGeneration = UserKernel.coffCache.getGeneration(name);
+		coff = UserKernel.coffCache.open(name);
+		if (coff == null) {
+			Lib.debug(dbgProcess, "\topen or coff load failed");
 			return false;
 		}
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		executableName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -396,25 +388,34 @@ public class UserProcess {
 	protected boolean loadSections() {
 		UserKernel.pagesLock.acquire();
 
-		if(numPages > UserKernel.freePages.size()) {
-		//if (numPages > Machine.processor().getNumPhysPages()) {
+		// read-only pages already loaded by another process are shared, and
+		// uninitialized, stack and argument pages only need zeroed frames
+		int sharedPages = 0, loadedPages = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isInitialzed())
+				continue;
+			for (int i = 0; i < section.getLength(); i++) {
+				if (section.isReadOnly()
+						&& UserKernel.findTextPage(executableName,
+								executableGeneration, s, i) != -1)
+					sharedPages++;
+				else
+					loadedPages++;
+			}
+		}
+
+		if(numPages - sharedPages > UserKernel.getNumFreeFrames()) {
+			UserKernel.pagesLock.release();
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 
-		if(UserKernel.freePages.size() < numPages) {
-			pageTable = null;
-			return false;
-		}
+		int[] frames = UserKernel.allocateFrames(loadedPages);
 
-		//Allocate page table entry
 		pageTable = new TranslationEntry[numPages];
-		for(int i = 0; i < numPages; i++) {
-			int getFreePhysicalPage = UserKernel.freePages.pollFirst();
-			pagesUsed.addLast(getFreePhysicalPage);
-			pageTable[i] = new TranslationEntry(i, getFreePhysicalPage, true, false, false, false);
-		}
+		int nextFrame = 0;
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -425,12 +426,40 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				pageTable[vpn].readOnly = section.isReadOnly();			
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, pageTable[vpn].ppn);
+				if (section.isReadOnly()) {
+					int ppn = UserKernel.findTextPage(executableName,
+							executableGeneration, s, i);
+					if (ppn != -1) {
+						UserKernel.shareFrame(ppn);
+						pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
+						continue;
+					}
+				}
+
+				if (!section.isInitialzed()) {
+					int ppn = UserKernel.allocateZeroedFrame();
+					pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
+					continue;
+				}
+
+				int ppn = frames[nextFrame++];
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
+				section.loadPage(i, ppn);
+
+				if (section.isReadOnly())
+					UserKernel.addTextPage(executableName, executableGeneration,
+							s, i, ppn);
 			}
 		}
 
+		// the stack and argument pages
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (pageTable[vpn] != null)
+				continue;
+			int ppn = UserKernel.allocateZeroedFrame();
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+		}
+
 		UserKernel.pagesLock.release();
 		return true;
 	}
@@ -441,7 +470,8 @@ public class UserProcess {
 	protected void unloadSections() {
 		UserKernel.pagesLock.acquire();
 		for(int i = 0; i < numPages; i++) {
-			UserKernel.freePages.addLast(pageTable[i].ppn);
+			if(pageTable[i].valid)
+				UserKernel.releaseFrame(pageTable[i].ppn);
 			pageTable[i].valid = false;
 			pageTable[i].vpn = -1;
 		}
@@ -460,6 +490,14 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked child resumes where its parent made the fork() call
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -480,9 +518,10 @@ public class UserProcess {
 		if(PID != 0) {
 			return -1;
 		}
-		Machine.halt();
+		// let the kernel clean up (e.g. remove its swap file) before halting
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -496,11 +535,7 @@ public class UserProcess {
 		// can grade your implementation.
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
 
-		for(int fp = 2; fp < fileTable.length; fp++) {
-			if(fileTable[fp] != null) {
-				handleClose(fp);
-			}
-		}
+		fileTable.closeAll();
 		unloadSections();
 		coff.close();
 
@@ -557,7 +592,12 @@ public class UserProcess {
             }
         }
 
+        admitNewProcess();
+
         UserProcess childProcess = newUserProcess();
+        // the child's standard input and output are the parent's
+        childProcess.fileTable.inherit(fileTable, 0);
+        childProcess.fileTable.inherit(fileTable, 1);
         boolean execStatus = childProcess.execute(fileName, args);
      
 
@@ -568,13 +608,145 @@ public class UserProcess {
             return childProcess.PID;
         }
         else{
-            UserKernel.PIDLock.acquire();
-            UserKernel.totalProcesses--;
-            UserKernel.PIDLock.release();
+            // let go of the inherited descriptors, or a pipe never closes
+            abandonChild(childProcess);
             return -1;
           }
 	}
 
+	/**
+	 * Handle the fork() system call. The child gets this process's file
+	 * descriptors and registers, and an address space that shares every page
+	 * with this one until either process writes to it (see
+	 * <tt>copyAddressSpace()</tt>). The child sees fork() return 0.
+	 */
+	private int handleFork() {
+		UserProcess childProcess = newUserProcess();
+
+		childProcess.executableGeneration = UserKernel.coffCache
+				.getGeneration(executableName);
+		childProcess.coff = UserKernel.coffCache.open(executableName);
+		if (childProcess.coff == null) {
+			abandonChild(childProcess);
+			return -1;
+		}
+		childProcess.executableName = executableName;
+
+		if (!copyAddressSpace(childProcess)) {
+			childProcess.coff.close();
+			abandonChild(childProcess);
+			return -1;
+		}
+
+		childProcess.fileTable.closeAll();
+		childProcess.fileTable.copyFrom(fileTable);
+
+		Processor processor = Machine.processor();
+		int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < registers.length; i++)
+			registers[i] = processor.readRegister(i);
+
+		// step the child past the syscall, as handleException() will for us
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+		childProcess.forkRegisters = registers;
+
+		childProcess.par = this;
+		runningChilds.put(childProcess.PID, childProcess);
+		childPID.add(childProcess.PID);
+
+		childProcess.thread = new UThread(childProcess);
+		childProcess.thread.setName(executableName).fork();
+
+		return childProcess.PID;
+	}
+
+	private void abandonChild(UserProcess childProcess) {
+		childProcess.fileTable.closeAll();
+		UserKernel.PIDLock.acquire();
+		UserKernel.totalProcesses--;
+		UserKernel.PIDLock.release();
+	}
+
+	/**
+	 * Give a forked child an address space identical to this one. No page is
+	 * copied: both page tables map the same physical pages, with every
+	 * writable page made read-only and marked copy-on-write in both
+	 * processes. The first write to such a page by either process raises a
+	 * read-only exception, and <tt>breakCopyOnWrite()</tt> gives the writer
+	 * its own copy.
+	 * 
+	 * @param child the new process.
+	 * @return <tt>true</tt> on success.
+	 */
+	protected boolean copyAddressSpace(UserProcess child) {
+		UserKernel.pagesLock.acquire();
+
+		if (copyOnWrite == null)
+			copyOnWrite = new boolean[numPages];
+
+		child.numPages = numPages;
+		child.pageTable = new TranslationEntry[numPages];
+		child.copyOnWrite = new boolean[numPages];
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				if (!entry.readOnly) {
+					entry.readOnly = true;
+					copyOnWrite[vpn] = true;
+				}
+				child.copyOnWrite[vpn] = copyOnWrite[vpn];
+				UserKernel.shareFrame(entry.ppn);
+			}
+			child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn,
+					entry.valid, entry.readOnly, false, false);
+		}
+
+		UserKernel.pagesLock.release();
+		return true;
+	}
+
+	/**
+	 * Make a copy-on-write page writable. If another page table still maps
+	 * the physical page, this process gets a private copy of it; otherwise
+	 * the page is already private and only its protection changes.
+	 * 
+	 * @param vpn the virtual page being written.
+	 * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if
+	 * it is not a copy-on-write page or no physical page is free.
+	 */
+	protected boolean breakCopyOnWrite(int vpn) {
+		if (copyOnWrite == null || vpn < 0 || vpn >= numPages
+				|| !copyOnWrite[vpn])
+			return false;
+
+		UserKernel.pagesLock.acquire();
+
+		TranslationEntry entry = pageTable[vpn];
+		if (UserKernel.isFrameShared(entry.ppn)) {
+			int ppn = UserKernel.frameAllocator.allocate();
+			if (ppn == -1) {
+				UserKernel.pagesLock.release();
+				return false;
+			}
+
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, entry.ppn * pageSize, memory, ppn
+					* pageSize, pageSize);
+
+			UserKernel.releaseFrame(entry.ppn);
+			entry.ppn = ppn;
+		}
+
+		entry.readOnly = false;
+		copyOnWrite[vpn] = false;
+
+		UserKernel.pagesLock.release();
+		return true;
+	}
+
 	private int handleJoin(int PID, int status) {
 		if(childPID.contains(PID) == false) {
 			return -1;
@@ -618,24 +790,16 @@ public class UserProcess {
 		if(fileName == null) {
 			return -1;
 		}
-		int openIndex = -1;
-		for(int i = 2; i < 16; i++) {
-			if(fileTable[i] == null) {
-				openIndex = i;
-				break;
-			}
-		}
-		if(openIndex == -1) {
-			return -1;
-		}
 		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
 		if(file == null) {
 			return -1;
 		}
-		else {
-			fileTable[openIndex] = file;
-			return openIndex;
+		UserKernel.coffCache.invalidate(fileName);
+		int openIndex = fileTable.allocate(file);
+		if(openIndex == -1) {
+			file.close();
 		}
+		return openIndex;
 	 }
 
 	 private int handleOpen(int memAddress) {
@@ -646,132 +810,391 @@ public class UserProcess {
 		if(fileName == null) {
 			return -1;
 		}
-		int openIndex = -1;
-		for(int i = 2; i < 16; i++) {
-			if(fileTable[i] == null) {
-				openIndex = i;
-				break;
-			}
-		}
-		if(openIndex == -1) {
-			return -1;
-		}
 		OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
 		if(file == null) {
 			return -1;
 		}
-		else {
-			fileTable[openIndex] = file;
-			return openIndex;
+		int openIndex = fileTable.allocate(file);
+		if(openIndex == -1) {
+			file.close();
 		}
+		return openIndex;
 	 }
 
 	 private int handleRead(int index, int buffer, int count) {
-		if(index < 0 || index >= 16 ||fileTable[index] == null || buffer < 0 || count < 0) {
+		OpenFile file = fileTable.get(index);
+		if(file == null || isMapped(index) || buffer < 0 || count < 0) {
+			return -1;
+		}
+		return transferFile(file, buffer, count, true);
+	 }
+
+	private int handleWrite(int index, int buffer, int count) {
+		OpenFile file = fileTable.get(index);
+		if(file == null || isMapped(index) || buffer < 0 || count < 0) {
+			return -1;
+		}
+		int written = transferFile(file, buffer, count, false);
+		fileWritten(file);
+		return written;
+	}
+
+	private int handleReadv(int index, int iov, int iovcnt) {
+		OpenFile file = fileTable.get(index);
+		if(file == null || isMapped(index)) {
 			return -1;
 		}
-		OpenFile file = fileTable[index];
-		byte[] readinbuff = new byte[pageSize];
-		int bytesReadTotal = 0;
-		int justReadBytes = 0;
-		int unreadBytes = count;
-		while(unreadBytes > pageSize) {
-			justReadBytes = file.read(readinbuff, 0, pageSize);
-			if(justReadBytes == -1) {
+		return transferVector(file, iov, iovcnt, true);
+	}
+
+	private int handleWritev(int index, int iov, int iovcnt) {
+		OpenFile file = fileTable.get(index);
+		if(file == null || isMapped(index)) {
+			return -1;
+		}
+		int written = transferVector(file, iov, iovcnt, false);
+		fileWritten(file);
+		return written;
+	}
+
+	/**
+	 * Forget any parsed copy of a file this process has just written. Called
+	 * even if the write failed, since part of it may have been done. Consoles
+	 * and pipes have no file system, and their names are not file names.
+	 */
+	private void fileWritten(OpenFile file) {
+		if (file.getFileSystem() != null)
+			UserKernel.coffCache.invalidate(file.getName());
+	}
+
+	/**
+	 * Perform <tt>transferFile()</tt> on each buffer of a user
+	 * <tt>struct iovec</tt> array in turn, stopping at the first short read.
+	 * 
+	 * @return the total number of bytes transferred, or -1 on error.
+	 */
+	private int transferVector(OpenFile file, int iov, int iovcnt,
+			boolean reading) {
+		if (iovcnt < 0 || iovcnt > maxIovecs) {
+			return -1;
+		}
+
+		byte[] vector = new byte[iovcnt * iovecSize];
+		if (readVirtualMemory(iov, vector) != vector.length) {
+			return -1;
+		}
+
+		int total = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int base = Lib.bytesToInt(vector, i * iovecSize);
+			int length = Lib.bytesToInt(vector, i * iovecSize + 4);
+			if (base < 0 || length < 0) {
 				return -1;
 			}
-			if(justReadBytes == 0) {
-				return bytesReadTotal;
-			}
-			int helper = writeVirtualMemory(buffer, readinbuff, 0, justReadBytes);
-			if(helper != justReadBytes) {
+
+			int result = transferFile(file, base, length, reading);
+			if (result == -1) {
 				return -1;
 			}
-			buffer = buffer + helper;
-			bytesReadTotal = bytesReadTotal + helper;
-			unreadBytes = unreadBytes - helper;
-		}
-		justReadBytes = file.read(readinbuff, 0, unreadBytes);
-		if(justReadBytes == -1) {
-			return -1;
+			total += result;
+			if (result < length) {
+				break;
+			}
 		}
-		int helper = writeVirtualMemory(buffer, readinbuff, 0, justReadBytes);
+		return total;
+	}
 
-		if(justReadBytes != helper) {
+	/**
+	 * Handle the copyfile() system call. Copies through a kernel buffer owned
+	 * by this process, so no user memory is touched and the buffer is only
+	 * allocated once.
+	 */
+	private int handleCopyfile(int srcIndex, int dstIndex, int count) {
+		OpenFile src = fileTable.get(srcIndex);
+		OpenFile dst = fileTable.get(dstIndex);
+		if(src == null || dst == null || isMapped(srcIndex)
+				|| isMapped(dstIndex) || count < 0) {
 			return -1;
 		}
-		bytesReadTotal = bytesReadTotal + helper;
-		return bytesReadTotal;
-	 }
 
-	private int handleWrite(int index, int buffer, int count) {
-		if(index < 1 || index >= 16 ||fileTable[index] == null || buffer < 0 || count < 0) {
-			return -1;
+		int copied = copyThroughBuffer(src, dst, count);
+		fileWritten(dst);
+		return copied;
+	}
+
+	/**
+	 * Copy up to <i>count</i> bytes from <i>src</i> to <i>dst</i> through
+	 * <tt>copyBuffer</tt>, stopping early at the end of <i>src</i>.
+	 * 
+	 * @return the number of bytes copied, or -1 on error.
+	 */
+	private int copyThroughBuffer(OpenFile src, OpenFile dst, int count) {
+		if (copyBuffer == null) {
+			copyBuffer = new byte[copyBufferPages * pageSize];
 		}
-		OpenFile file = fileTable[index];
-		byte[] readinbuff = new byte[pageSize];
-		int bytesWrittenTotal = 0;
-		int justWrittenBytes = 0;
-		int unwrittenBytes = count;
-		while(unwrittenBytes > pageSize) {
-			justWrittenBytes = readVirtualMemory(buffer, readinbuff, 0, pageSize);
-			if(justWrittenBytes < pageSize) {
+
+		int copied = 0;
+		while (copied < count) {
+			int amount = Math.min(count - copied, copyBuffer.length);
+			int read = src.read(copyBuffer, 0, amount);
+			if (read == -1) {
 				return -1;
 			}
-			int helper = file.write(readinbuff, 0, justWrittenBytes);
-			if(justWrittenBytes != helper) {
-				System.out.println("bytes unequal write in loop");
+			if (read == 0) {
+				break;
+			}
+			if (dst.write(copyBuffer, 0, read) != read) {
 				return -1;
 			}
-			if(helper == -1) {
-				System.out.println("helper -1 in loop");
+			copied += read;
+			if (read < amount) {
+				break;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Move bytes between an open file and this process's virtual memory
+	 * without an intermediate buffer. Each virtual page is translated and
+	 * pinned with <tt>pinVirtualPage()</tt>, and the file reads or writes
+	 * main memory directly at the physical address, so a transfer of N pages
+	 * is at most N calls to the file and no allocation. Virtual pages that
+	 * are also adjacent in physical memory (up to <tt>maxTransferPages</tt>
+	 * of them) are moved in a single call. Consoles and pipes may block for
+	 * as long as they like, so they go through <tt>transferStream()</tt>
+	 * instead, which pins nothing.
+	 * 
+	 * @param file the file to transfer to or from.
+	 * @param vaddr the first byte of virtual memory to transfer.
+	 * @param count the number of bytes to transfer.
+	 * @param reading <tt>true</tt> to read from the file into memory,
+	 * <tt>false</tt> to write memory to the file.
+	 * @return the number of bytes transferred, or -1 if part of the buffer is
+	 * invalid, the file fails, or a write comes up short.
+	 */
+	protected int transferFile(OpenFile file, int vaddr, int count,
+			boolean reading) {
+		if (file.getFileSystem() == null)
+			return transferStream(file, vaddr, count, reading);
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int transferred = 0;
+		while (transferred < count) {
+			int addr = vaddr + transferred;
+			int firstVPN = Processor.pageFromAddress(addr);
+			int pageOffset = Processor.offsetFromAddress(addr);
+			int amount = Math.min(count - transferred, pageSize - pageOffset);
+
+			int firstPPN = pinVirtualPage(firstVPN, reading);
+			if (firstPPN == -1)
 				return -1;
+
+			// extend the run while the next page follows in physical memory
+			int lastVPN = firstVPN;
+			while (transferred + amount < count
+					&& lastVPN - firstVPN + 1 < maxTransferPages) {
+				int ppn = pinVirtualPage(lastVPN + 1, reading);
+				if (ppn != firstPPN + (lastVPN + 1 - firstVPN)) {
+					if (ppn != -1)
+						unpinVirtualPage(lastVPN + 1);
+					break;
+				}
+				lastVPN++;
+				amount += Math.min(count - transferred - amount, pageSize);
 			}
-			if(helper == 0) {
-				return bytesWrittenTotal;
+
+			int paddr = firstPPN * pageSize + pageOffset;
+			int result;
+			if (reading)
+				result = file.read(memory, paddr, amount);
+			else
+				result = file.write(memory, paddr, amount);
+
+			for (int vpn = firstVPN; vpn <= lastVPN; vpn++)
+				unpinVirtualPage(vpn);
+
+			if (result == -1)
+				return -1;
+
+			transferred += result;
+
+			if (result < amount) {
+				// a short read is end of file; a short write is an error
+				if (!reading)
+					return -1;
+				break;
 			}
-			buffer = buffer + helper;
-			bytesWrittenTotal = bytesWrittenTotal + helper;
-			unwrittenBytes = unwrittenBytes - helper;
-		}
-		justWrittenBytes = readVirtualMemory(buffer, readinbuff, 0, unwrittenBytes);
-		int helper = file.write(readinbuff, 0, unwrittenBytes);
-		if(helper == -1) {
-			System.out.println("helper -1 outside loop");
-			return -1;
 		}
-		if(helper != justWrittenBytes) {
-			System.out.println("bytes unequal write outside loop");
+
+		return transferred;
+	}
+
+	/**
+	 * Move bytes between a console or pipe and this process's virtual memory
+	 * through <tt>copyBuffer</tt>, so that no frame stays pinned while the
+	 * stream blocks. A read makes a single call to the stream, since a second
+	 * could wait for input that the caller does not need.
+	 * 
+	 * @return the number of bytes transferred, or -1 if part of the buffer is
+	 * invalid, the stream fails, or a write comes up short.
+	 */
+	private int transferStream(OpenFile file, int vaddr, int count,
+			boolean reading) {
+		if (count == 0)
+			return 0;
+
+		if (copyBuffer == null) {
+			copyBuffer = new byte[copyBufferPages * pageSize];
+		}
+
+		if (reading) {
+			int amount = Math.min(count, copyBuffer.length);
+			int result = file.read(copyBuffer, 0, amount);
+			if (result == -1
+					|| writeVirtualMemory(vaddr, copyBuffer, 0, result) != result)
+				return -1;
+			return result;
+		}
+
+		int transferred = 0;
+		while (transferred < count) {
+			int amount = Math.min(count - transferred, copyBuffer.length);
+			if (readVirtualMemory(vaddr + transferred, copyBuffer, 0, amount) != amount
+					|| file.write(copyBuffer, 0, amount) != amount)
+				return -1;
+			transferred += amount;
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Translate a virtual page and keep it resident until
+	 * <tt>unpinVirtualPage()</tt> is called, so that a device may transfer
+	 * directly to or from its frame in main memory. Marks the page used, and
+	 * dirty if it will be written.
+	 * 
+	 * @param vpn the virtual page to pin.
+	 * @param writing <tt>true</tt> if the page will be modified.
+	 * @return the physical page number, or -1 if the page is not mapped or
+	 * is read-only and <i>writing</i> is set.
+	 */
+	protected int pinVirtualPage(int vpn, boolean writing) {
+		if (pageTable == null || vpn < 0 || vpn >= numPages)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid
+				|| (writing && entry.readOnly && !breakCopyOnWrite(vpn)))
+			return -1;
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Release a page pinned by <tt>pinVirtualPage()</tt>. Physical pages of a
+	 * <tt>UserProcess</tt> never move, so there is nothing to do here.
+	 * 
+	 * @param vpn the virtual page to release.
+	 */
+	protected void unpinVirtualPage(int vpn) {
+	}
+
+	private int handleClose(int index) {
+		unmapFile(index);
+		return fileTable.close(index);
+	}
+
+	private int handleDup(int index) {
+		return fileTable.dup(index);
+	}
+
+	private int handleDup2(int oldIndex, int newIndex) {
+		if (oldIndex != newIndex && fileTable.get(oldIndex) != null)
+			unmapFile(newIndex);
+		return fileTable.dup2(oldIndex, newIndex);
+	}
+
+	private int handleMmap(int index, int address) {
+		OpenFile file = fileTable.get(index);
+		if (file == null || isMapped(index) || address < 0
+				|| Processor.offsetFromAddress(address) != 0) {
 			return -1;
 		}
+		return mapFile(index, file, address);
+	}
 
-		bytesWrittenTotal = bytesWrittenTotal + helper;
+	/**
+	 * Called by <tt>exec()</tt> before it starts a new process, to let a
+	 * subclass hold the new process back while memory is short. A
+	 * <tt>UserProcess</tt> starts it at once.
+	 */
+	protected void admitNewProcess() {
+	}
 
-		return bytesWrittenTotal;
+	/**
+	 * Map a file into this process's address space, for the <tt>mmap()</tt>
+	 * system call. A <tt>UserProcess</tt> has no demand paging to fill the
+	 * mapping with, so it always fails.
+	 *
+	 * @param index the file descriptor being mapped.
+	 * @param file the file it refers to.
+	 * @param address the page-aligned virtual address to map it at.
+	 * @return the length of the file, or -1 on error.
+	 */
+	protected int mapFile(int index, OpenFile file, int address) {
+		return -1;
+	}
+
+	/**
+	 * Remove the mapping made through a file descriptor that is being closed,
+	 * if there is one, writing its modified pages back to the file.
+	 *
+	 * @param index the file descriptor.
+	 */
+	protected void unmapFile(int index) {
+	}
 
-		/*OpenFile file = fileTable[index];
-		int bytesRead = -1;
-		int bytesWritten = -1;
-		byte[] readin = new byte[count];
-		bytesRead = readVirtualMemory(buffer, readin, 0, count);
-		if(bytesRead != count) {
+	/**
+	 * Test whether a file descriptor has been mapped, in which case it may
+	 * not be read or written until it is closed.
+	 *
+	 * @param index the file descriptor.
+	 * @return <tt>true</tt> if the descriptor is mapped.
+	 */
+	protected boolean isMapped(int index) {
+		return false;
+	}
+
+	private int handlePipe(int fdsAddress) {
+		Pipe pipe = new Pipe();
+		int readIndex = fileTable.allocate(pipe.getReadEnd());
+		if(readIndex == -1) {
+			pipe.getReadEnd().close();
+			pipe.getWriteEnd().close();
 			return -1;
 		}
-		bytesWritten = file.write(readin, 0, bytesRead);
-		if(bytesWritten != bytesRead) {
+		int writeIndex = fileTable.allocate(pipe.getWriteEnd());
+		if(writeIndex == -1) {
+			fileTable.close(readIndex);
+			pipe.getWriteEnd().close();
 			return -1;
 		}
-		return bytesWritten;
-		*/
-	}
 
-	private int handleClose(int index) {
-		if(index < 0 || index >= 16 || fileTable[index] == null) {
+		byte[] fds = new byte[8];
+		Lib.bytesFromInt(fds, 0, readIndex);
+		Lib.bytesFromInt(fds, 4, writeIndex);
+		if(writeVirtualMemory(fdsAddress, fds) != fds.length) {
+			fileTable.close(readIndex);
+			fileTable.close(writeIndex);
 			return -1;
 		}
-		OpenFile file = fileTable[index];
-		file.close();
-		fileTable[index] = null;
 		return 0;
 	}
 
@@ -783,7 +1206,9 @@ public class UserProcess {
 		if(fileName == null) {
 			return -1;
 		}
-		if(ThreadedKernel.fileSystem.remove(fileName) == true) {
+		boolean removed = ThreadedKernel.fileSystem.remove(fileName);
+		UserKernel.coffCache.invalidate(fileName);
+		if(removed == true) {
 			return 0;
 		}
 		else {
@@ -795,7 +1220,10 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallMmap = 10, syscallReadv = 13,
+			syscallWritev = 14,
+			syscallCopyfile = 15, syscallDup = 16, syscallDup2 = 17,
+			syscallPipe = 18, syscallFork = 19;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -849,6 +1277,41 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  copyfile(int srcfd, int dstfd, int count);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  dup2(int oldfd, int newfd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  pipe(int *fds);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -876,10 +1339,26 @@ public class UserProcess {
 				return handleClose(a0);
 			case syscallUnlink:
 				return handleUnlink(a0);
+			case syscallMmap:
+				return handleMmap(a0, a1);
 			case syscallExec:
 				return handleExec(a0, a1, a2);
 			case syscallJoin:
 				return handleJoin(a0, a1);
+			case syscallReadv:
+				return handleReadv(a0, a1, a2);
+			case syscallWritev:
+				return handleWritev(a0, a1, a2);
+			case syscallCopyfile:
+				return handleCopyfile(a0, a1, a2);
+			case syscallDup:
+				return handleDup(a0);
+			case syscallDup2:
+				return handleDup2(a0, a1);
+			case syscallPipe:
+				return handlePipe(a0);
+			case syscallFork:
+				return handleFork();
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -908,15 +1387,32 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionReadOnly:
+			int badVPN = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			// otherwise a write to a page that really is read-only
+			if (!breakCopyOnWrite(badVPN))
+				terminateOnException(cause);
+			break;
+
 		default:
-			abnormalTermination = true;
-			handleExit(-1);
-			Lib.debug(dbgProcess, "Unexpected exception: "
-					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+			terminateOnException(cause);
 		}
 	}
 
+	/**
+	 * Kill this process after an exception it cannot recover from.
+	 * 
+	 * @param cause the user exception that occurred.
+	 */
+	private void terminateOnException(int cause) {
+		abnormalTermination = true;
+		handleExit(-1);
+		Lib.debug(dbgProcess, "Unexpected exception: "
+				+ Processor.exceptionNames[cause]);
+		Lib.assertNotReached("Unexpected exception");
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
 
@@ -931,7 +1427,47 @@ public class UserProcess {
 
 	/** The thread that executes the user-level program. */
     protected UThread thread;
+
+	/**
+	 * For each virtual page, whether it is shared with a forked process and
+	 * must be copied before it is written. <tt>null</tt> until the first
+	 * fork.
+	 */
+	protected boolean[] copyOnWrite = null;
+
+	/** The name of the file this process was loaded from. */
+	protected String executableName;
+
+	/**
+	 * The generation of that file when this process loaded it, from
+	 * <tt>CoffCache.getGeneration()</tt>.
+	 */
+	protected int executableGeneration;
+
+	/** The registers a forked child starts with, or <tt>null</tt>. */
+	private int[] forkRegisters = null;
     
+	/**
+	 * The largest number of physically contiguous pages that
+	 * <tt>transferFile()</tt> pins and moves in one call to the file.
+	 */
+	protected static final int maxTransferPages = 8;
+
+	/** The largest <tt>iovcnt</tt> accepted by readv() and writev(). */
+	private static final int maxIovecs = 1024;
+
+	/** The size of a user <tt>struct iovec</tt>. */
+	private static final int iovecSize = 8;
+
+	/** The size, in pages, of the buffer used by copyfile() and streams. */
+	private static final int copyBufferPages = 8;
+
+	/**
+	 * Kernel buffer for copyfile() and for reading and writing consoles and
+	 * pipes, allocated on first use.
+	 */
+	private byte[] copyBuffer = null;
+
 	private int initialPC, initialSP;
 
 	private int argc, argv;
@@ -940,12 +1476,10 @@ public class UserProcess {
 
 	private static final char dbgProcess = 'a';
 
-	private LinkedList<Integer> pagesUsed;
-
 	private int PID;
 	private UserProcess par; 
 
-	private OpenFile[] fileTable;
+	private FileDescriptorTable fileTable;
 	private HashMap<Integer, UserProcess> runningChilds;
 	private HashMap <Integer, Integer> childStatuses; 
 	private HashSet <Integer> childPID;
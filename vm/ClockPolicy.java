@@ -0,0 +1,33 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm: a hand sweeps the frames in order, giving each page
+ * whose used bit is set a second chance and evicting the first page whose
+ * bit is clear, dirty or not.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		super();
+	}
+
+	public int chooseVictim() {
+		// two sweeps: the first may only clear used bits
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (isEvictable(ppn) && !testAndClearUsed(ppn))
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	/** The next frame to examine. */
+	private int hand = 0;
+}
@@ -0,0 +1,174 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import nachos.machine.*;
+
+/**
+ * A simplified CLOCK-Pro. Resident pages are either hot, having been
+ * re-used soon after they were brought in, or cold. Only cold pages are
+ * evicted. A cold page starts a test period when it is loaded or used; if it
+ * is used again during the test period it becomes hot, and if it is evicted
+ * during the test period its virtual page is remembered, so that
+ * faulting it back in before the period ends also makes it hot. Pages that
+ * are scanned once and never touched again therefore stay cold and cannot
+ * push the hot working set out of memory.
+ *
+ * <p>
+ * The number of frames kept for cold pages adapts: it grows each time a
+ * remembered page returns, since that page would have stayed resident with
+ * more cold frames, and shrinks each time a test period runs out unused. The
+ * hot hand demotes hot pages that have not been used whenever there are more
+ * hot pages than the rest of memory allows. Like <tt>WSClockPolicy</tt>, the
+ * cold hand passes over dirty victims after scheduling their writeback,
+ * returning to them only if no clean page can be found.
+ */
+public class ClockProPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new CLOCK-Pro policy.
+	 */
+	public ClockProPolicy() {
+		super();
+
+		hot = new boolean[numFrames];
+		inTest = new boolean[numFrames];
+		coldTarget = Math.max(1, numFrames / 4);
+	}
+
+	public void pageLoaded(int ppn) {
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+
+		if (nonResident.remove(new VMKernel.VirtualPage(frame.process,
+				frame.vpn)) != null) {
+			// re-faulted within its test period
+			coldTarget = Math.min(numFrames - 1, coldTarget + 1);
+			hot[ppn] = true;
+			inTest[ppn] = false;
+			numHot++;
+			balanceHot();
+		}
+		else {
+			hot[ppn] = false;
+			inTest[ppn] = true;
+		}
+	}
+
+	public void pageRemoved(int ppn, boolean evicted) {
+		if (hot[ppn]) {
+			hot[ppn] = false;
+			numHot--;
+		}
+		else if (evicted && inTest[ppn]) {
+			VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+			remember(new VMKernel.VirtualPage(frame.process, frame.vpn));
+		}
+		inTest[ppn] = false;
+	}
+
+	public int chooseVictim() {
+		int dirtyVictim = -1;
+
+		// a second sweep sees pages whose used bits the first one cleared
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = coldHand;
+			coldHand = (coldHand + 1) % numFrames;
+
+			if (!isEvictable(ppn) || hot[ppn])
+				continue;
+
+			if (testAndClearUsed(ppn)) {
+				if (inTest[ppn]) {
+					hot[ppn] = true;
+					inTest[ppn] = false;
+					numHot++;
+					balanceHot();
+				}
+				else {
+					inTest[ppn] = true;
+				}
+				continue;
+			}
+
+			if (!isDirty(ppn))
+				return ppn;
+
+			VMKernel.scheduleWriteback(ppn);
+			if (dirtyVictim == -1)
+				dirtyVictim = ppn;
+		}
+
+		if (dirtyVictim != -1)
+			return dirtyVictim;
+
+		// every evictable page is hot: demote the coldest and take it
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hotHand;
+			hotHand = (hotHand + 1) % numFrames;
+
+			if (isEvictable(ppn) && hot[ppn] && !testAndClearUsed(ppn)) {
+				hot[ppn] = false;
+				numHot--;
+				return ppn;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Run the hot hand until there are no more hot pages than the frames not
+	 * reserved for cold pages.
+	 */
+	private void balanceHot() {
+		for (int i = 0; i < 2 * numFrames && numHot > numFrames - coldTarget; i++) {
+			int ppn = hotHand;
+			hotHand = (hotHand + 1) % numFrames;
+
+			if (VMKernel.InvertedPageTable[ppn].process == null)
+				continue;
+
+			if (!hot[ppn]) {
+				// the hot hand ends the test period of cold pages it passes
+				inTest[ppn] = false;
+				continue;
+			}
+
+			if (!testAndClearUsed(ppn)) {
+				hot[ppn] = false;
+				numHot--;
+			}
+		}
+	}
+
+	/**
+	 * Remember an evicted page that was still in its test period, forgetting
+	 * the oldest remembered page if there are more than there are frames.
+	 */
+	private void remember(VMKernel.VirtualPage page) {
+		nonResident.put(page, Boolean.TRUE);
+
+		if (nonResident.size() > numFrames) {
+			Iterator<VMKernel.VirtualPage> i = nonResident.keySet().iterator();
+			i.next();
+			i.remove();
+			coldTarget = Math.max(1, coldTarget - 1);
+		}
+	}
+
+	/** Whether each frame's page is hot. */
+	private boolean[] hot;
+
+	/** Whether each frame's cold page is in its test period. */
+	private boolean[] inTest;
+
+	private int numHot = 0;
+
+	/** The number of frames the hot hand leaves for cold pages. */
+	private int coldTarget;
+
+	private int coldHand = 0, hotHand = 0;
+
+	/** The evicted pages still in their test period, oldest first. */
+	private LinkedHashMap<VMKernel.VirtualPage, Boolean> nonResident = new LinkedHashMap<VMKernel.VirtualPage, Boolean>();
+}
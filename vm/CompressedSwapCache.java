@@ -0,0 +1,271 @@
+package nachos.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A compressed cache of swap pages in kernel memory, in front of the swap
+ * file. A page written to swap is compressed with <tt>PageCompressor</tt>
+ * and kept here if it shrinks; a page of zeros is kept as just a flag.
+ * Only pages that do not compress go straight to the swap file, and the
+ * cache writes its least recently used pages there when its compressed
+ * contents exceed a fixed number of bytes. Reads look in the cache first.
+ *
+ * <p>
+ * A page being written back stays in the cache until the write completes,
+ * so that a read in the meantime still finds it. The cache has its own lock,
+ * which is released for disk transfers. <tt>read()</tt> and <tt>write()</tt>
+ * may wait for the disk, so callers must not hold
+ * <tt>VMKernel.memoryLock</tt>.
+ */
+public class CompressedSwapCache {
+	/**
+	 * Allocate a new, empty cache.
+	 *
+	 * @param maxBytes the most compressed bytes to keep. If 0, every page
+	 * goes to the swap file.
+	 */
+	public CompressedSwapCache(int maxBytes) {
+		Lib.assertTrue(maxBytes >= 0);
+
+		this.maxBytes = maxBytes;
+		lock = new Lock();
+		writebackDone = new Condition2(lock);
+	}
+
+	/**
+	 * Write a run of adjacent swap pages.
+	 *
+	 * @param firstSwapPN the first swap page.
+	 * @param data the array holding the pages.
+	 * @param offset where in <i>data</i> the first page starts.
+	 * @param count the number of pages.
+	 */
+	public void write(int firstSwapPN, byte[] data, int offset, int count) {
+		lock.acquire();
+
+		int runStart = -1;
+		for (int i = 0; i <= count; i++) {
+			boolean cached = false;
+			if (i < count)
+				cached = store(firstSwapPN + i, data, offset + i * pageSize);
+
+			// write each run of pages that did not compress with one request
+			if (i < count && !cached) {
+				if (runStart == -1)
+					runStart = i;
+			}
+			else if (runStart != -1) {
+				writeToDisk(firstSwapPN + runStart, data, offset + runStart
+						* pageSize, i - runStart);
+				runStart = -1;
+			}
+		}
+
+		trim();
+		lock.release();
+	}
+
+	/**
+	 * Read a swap page.
+	 *
+	 * @param swapPN the swap page.
+	 * @param data the array to read into.
+	 * @param offset where in <i>data</i> to put the page.
+	 */
+	public void read(int swapPN, byte[] data, int offset) {
+		lock.acquire();
+
+		Entry entry = entries.get(swapPN);
+		if (entry != null) {
+			hits++;
+			if (entry.data == null)
+				Arrays.fill(data, offset, offset + pageSize, (byte) 0);
+			else
+				PageCompressor.decompress(entry.data, data, offset, pageSize);
+		}
+		else {
+			lock.release();
+			VMKernel.swapFile.read(swapPN * pageSize, data, offset, pageSize);
+			lock.acquire();
+			diskReads++;
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Forget a swap page that has been freed.
+	 *
+	 * @param swapPN the swap page.
+	 */
+	public void discard(int swapPN) {
+		lock.acquire();
+		waitForWriteback(swapPN);
+		remove(swapPN);
+		lock.release();
+	}
+
+	/**
+	 * Return a line of statistics about the cache.
+	 *
+	 * @return the statistics.
+	 */
+	public String getStatistics() {
+		return "stored " + stored + " (" + zeroPages + " zero), "
+				+ uncompressible + " uncompressible, " + hits + " hits, "
+				+ totalBytes + " bytes, disk reads " + diskReads
+				+ ", disk writes " + diskWrites + " in " + diskRequests
+				+ " requests";
+	}
+
+	/**
+	 * Try to keep one page in the cache, replacing any older copy.
+	 *
+	 * @return <tt>true</tt> if the page was cached, or <tt>false</tt> if it
+	 * must be written to disk.
+	 */
+	private boolean store(int swapPN, byte[] data, int offset) {
+		waitForWriteback(swapPN);
+		remove(swapPN);
+
+		if (maxBytes == 0)
+			return false;
+
+		Entry entry = new Entry();
+		if (isZero(data, offset)) {
+			zeroPages++;
+		}
+		else {
+			entry.data = PageCompressor.compress(data, offset, pageSize);
+			if (entry.data == null || entry.data.length > maxBytes) {
+				uncompressible++;
+				return false;
+			}
+			totalBytes += entry.data.length;
+		}
+
+		stored++;
+		entries.put(swapPN, entry);
+		return true;
+	}
+
+	/**
+	 * Wait until a page is not being written back, so that the writeback
+	 * cannot land on top of a newer copy of the page, or of a new page in a
+	 * reused swap page.
+	 */
+	private void waitForWriteback(int swapPN) {
+		Entry entry;
+		while ((entry = entries.get(swapPN)) != null && entry.writing)
+			writebackDone.sleep();
+	}
+
+	private void remove(int swapPN) {
+		Entry entry = entries.remove(swapPN);
+		if (entry != null && entry.data != null)
+			totalBytes -= entry.data.length;
+	}
+
+	/**
+	 * Write the least recently used pages to disk until the cache is within
+	 * its bound, coalescing pages that are adjacent in the swap file.
+	 */
+	private void trim() {
+		if (totalBytes <= maxBytes)
+			return;
+
+		ArrayList<Integer> victims = new ArrayList<Integer>();
+		int freed = 0;
+		for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+			if (totalBytes - freed <= maxBytes)
+				break;
+
+			Entry entry = e.getValue();
+			if (entry.writing || entry.data == null)
+				continue;
+
+			entry.writing = true;
+			freed += entry.data.length;
+			victims.add(e.getKey());
+		}
+
+		Collections.sort(victims);
+
+		int start = 0;
+		while (start < victims.size()) {
+			int end = start + 1;
+			while (end < victims.size()
+					&& victims.get(end) == victims.get(end - 1) + 1)
+				end++;
+
+			byte[] buffer = new byte[(end - start) * pageSize];
+			Entry[] written = new Entry[end - start];
+			for (int i = start; i < end; i++) {
+				written[i - start] = entries.get(victims.get(i));
+				PageCompressor.decompress(written[i - start].data, buffer, (i - start)
+						* pageSize, pageSize);
+			}
+
+			writeToDisk(victims.get(start), buffer, 0, end - start);
+
+			for (int i = start; i < end; i++)
+				remove(victims.get(i));
+			writebackDone.wakeAll();
+
+			start = end;
+		}
+	}
+
+	/** Write pages to the swap file with the lock released. */
+	private void writeToDisk(int firstSwapPN, byte[] data, int offset, int count) {
+		lock.release();
+		VMKernel.swapFile.write(firstSwapPN * pageSize, data, offset, count
+				* pageSize);
+		lock.acquire();
+
+		diskWrites += count;
+		diskRequests++;
+	}
+
+	private static boolean isZero(byte[] data, int offset) {
+		for (int i = offset; i < offset + pageSize; i++) {
+			if (data[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** A cached page: its compressed contents, or <tt>null</tt> for zeros. */
+	private static class Entry {
+		byte[] data = null;
+
+		/** Whether the page is being written back to disk. */
+		boolean writing = false;
+	}
+
+	private int maxBytes;
+
+	private int totalBytes = 0;
+
+	private int stored = 0, zeroPages = 0, uncompressible = 0, hits = 0;
+
+	private int diskReads = 0, diskWrites = 0, diskRequests = 0;
+
+	private Lock lock;
+
+	/** Signalled when pages being written back leave the cache. */
+	private Condition2 writebackDone;
+
+	/** Cached pages by swap page number, least recently used first. */
+	private LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(
+			16, 0.75f, true);
+
+	private static final int pageSize = Processor.pageSize;
+}
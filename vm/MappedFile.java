@@ -0,0 +1,164 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A file that one or more processes have mapped into memory with
+ * <tt>mmap()</tt>. There is one <tt>MappedFile</tt> per file name, however
+ * many processes map the file, so that they all share one frame for each
+ * resident page of it. The kernel opens the file itself, so the mapping does
+ * not depend on any process's file descriptor.
+ *
+ * <p>
+ * Pages are read from the file when they are faulted in and written back to
+ * it, instead of to swap, when they are evicted dirty or unmapped by the last
+ * process mapping them. The mapping covers the length the file had when it
+ * was first mapped: the last page is zero-filled beyond it, and writes to that
+ * part are not written back.
+ *
+ * <p>
+ * Everything here is guarded by <tt>VMKernel.memoryLock</tt>, except
+ * <tt>readPage()</tt> and <tt>writePage()</tt>, which may wait for the file
+ * system and so are called without it.
+ */
+public class MappedFile {
+	private MappedFile(String name, OpenFile file) {
+		this.name = name;
+		this.file = file;
+		length = file.length();
+
+		frames = new int[Lib.divRoundUp(length, pageSize)];
+		Arrays.fill(frames, -1);
+	}
+
+	/**
+	 * Add a mapping of a file, opening it if no process has it mapped.
+	 *
+	 * @param name the name of the file.
+	 * @return the mapped file, or <tt>null</tt> if it could not be opened.
+	 */
+	public static MappedFile open(String name) {
+		MappedFile mapped = files.get(name);
+		if (mapped == null) {
+			OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+			if (file == null)
+				return null;
+			if (file.length() < 0) {
+				file.close();
+				return null;
+			}
+
+			mapped = new MappedFile(name, file);
+			files.put(name, mapped);
+		}
+
+		mapped.numMappings++;
+		return mapped;
+	}
+
+	/**
+	 * Remove a mapping of this file, closing it if it was the last. The
+	 * process removing the mapping must have released its pages.
+	 */
+	public void close() {
+		Lib.assertTrue(numMappings > 0);
+
+		if (--numMappings == 0) {
+			files.remove(name);
+			file.close();
+		}
+	}
+
+	/**
+	 * Return the number of bytes mapped.
+	 *
+	 * @return the length of the file when it was first mapped.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Return the number of pages a mapping of this file covers.
+	 *
+	 * @return the number of pages.
+	 */
+	public int getNumPages() {
+		return frames.length;
+	}
+
+	/**
+	 * Return the frame holding a page of this file.
+	 *
+	 * @param page the page number within the file.
+	 * @return the physical page number, -1 if the page is not resident, or
+	 * <tt>busy</tt> if it is being read or written.
+	 */
+	public int getFrame(int page) {
+		return frames[page];
+	}
+
+	/**
+	 * Record the frame holding a page of this file.
+	 *
+	 * @param page the page number within the file.
+	 * @param ppn the physical page number, -1, or <tt>busy</tt>.
+	 */
+	public void setFrame(int page, int ppn) {
+		frames[page] = ppn;
+	}
+
+	/**
+	 * Read a page of this file, zero-filling whatever lies beyond the mapped
+	 * length.
+	 *
+	 * @param page the page number within the file.
+	 * @param data the array to read into.
+	 * @param offset where in <i>data</i> to put the page.
+	 */
+	public void readPage(int page, byte[] data, int offset) {
+		int amount = Math.min(pageSize, length - page * pageSize);
+
+		int read = Math.max(0, file.read(page * pageSize, data, offset, amount));
+		Arrays.fill(data, offset + read, offset + pageSize, (byte) 0);
+	}
+
+	/**
+	 * Write a page back to this file, leaving out whatever lies beyond the
+	 * mapped length, and forget any parsed copy of the file.
+	 *
+	 * @param page the page number within the file.
+	 * @param data the array holding the page.
+	 * @param offset where in <i>data</i> the page starts.
+	 */
+	public void writePage(int page, byte[] data, int offset) {
+		int amount = Math.min(pageSize, length - page * pageSize);
+
+		file.write(page * pageSize, data, offset, amount);
+		UserKernel.coffCache.invalidate(name);
+	}
+
+	/** A frame number meaning that a page is being read or written. */
+	public static final int busy = -2;
+
+	private String name;
+
+	private OpenFile file;
+
+	private int length;
+
+	/** The frame of each page, or -1 or <tt>busy</tt>. */
+	private int[] frames;
+
+	private int numMappings = 0;
+
+	/** Mapped files by name. */
+	private static HashMap<String, MappedFile> files = new HashMap<String, MappedFile>();
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,209 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import nachos.machine.*;
+
+/**
+ * A small LZ77 compressor in the style of LZ4, fast enough to run on every
+ * page that is swapped out. The output is a sequence of blocks, each a run
+ * of literal bytes followed by a copy of earlier output:
+ *
+ * <ul>
+ * <li>a token byte, whose high four bits are the number of literals and low
+ * four bits the copy length less 4, either of which is continued in
+ * following bytes of 255 when it is 15;
+ * <li>the literals;
+ * <li>the distance back to the start of the copy, in two bytes, least
+ * significant first.
+ * </ul>
+ *
+ * The last block has no copy: it ends at the end of the input. Matches are
+ * found with a hash table of the last position each four-byte sequence was
+ * seen, so compression is a single pass.
+ */
+public class PageCompressor {
+	private PageCompressor() {
+	}
+
+	/**
+	 * Compress part of an array.
+	 *
+	 * @param src the array holding the data.
+	 * @param offset the first byte to compress.
+	 * @param length the number of bytes to compress.
+	 * @return the compressed bytes, or <tt>null</tt> if they would be no
+	 * shorter than the input.
+	 */
+	public static byte[] compress(byte[] src, int offset, int length) {
+		byte[] out = new byte[length + length / 255 + 16];
+		int[] table = new int[hashSize];
+		Arrays.fill(table, -1);
+
+		int end = offset + length;
+		int anchor = offset;
+		int o = 0;
+
+		int i = offset;
+		while (i + minMatch <= end) {
+			int sequence = readInt(src, i);
+			int h = (sequence * hashMultiplier) >>> (32 - hashBits);
+			int ref = table[h];
+			table[h] = i;
+
+			if (ref < 0 || i - ref > maxDistance || readInt(src, ref) != sequence) {
+				i++;
+				continue;
+			}
+
+			int match = minMatch;
+			while (i + match < end && src[ref + match] == src[i + match])
+				match++;
+
+			o = writeLiterals(out, o, src, anchor, i - anchor, match - minMatch);
+			out[o++] = (byte) (i - ref);
+			out[o++] = (byte) ((i - ref) >>> 8);
+			o = writeLength(out, o, match - minMatch);
+
+			i += match;
+			anchor = i;
+
+			if (o >= length)
+				return null;
+		}
+
+		o = writeLiterals(out, o, src, anchor, end - anchor, 0);
+		if (o >= length)
+			return null;
+
+		return Arrays.copyOf(out, o);
+	}
+
+	/**
+	 * Decompress the output of <tt>compress()</tt>.
+	 *
+	 * @param in the compressed bytes.
+	 * @param dst the array to decompress into.
+	 * @param offset where in <i>dst</i> to start.
+	 * @param length the number of bytes the data decompresses to.
+	 */
+	public static void decompress(byte[] in, byte[] dst, int offset, int length) {
+		int ip = 0;
+		int op = offset;
+		int end = offset + length;
+
+		while (true) {
+			int token = in[ip++] & 0xFF;
+
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+
+			System.arraycopy(in, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+
+			if (ip == in.length)
+				break;
+
+			int distance = (in[ip] & 0xFF) | ((in[ip + 1] & 0xFF) << 8);
+			ip += 2;
+
+			int match = token & 15;
+			if (match == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xFF;
+					match += b;
+				} while (b == 255);
+			}
+			match += minMatch;
+
+			// byte by byte, since a copy may overlap what it produces
+			for (int k = 0; k < match; k++, op++)
+				dst[op] = dst[op - distance];
+		}
+
+		Lib.assertTrue(op == end, "corrupt compressed page");
+	}
+
+	private static int writeLiterals(byte[] out, int o, byte[] src, int start,
+			int count, int matchCode) {
+		int token = (Math.min(count, 15) << 4) | Math.min(matchCode, 15);
+		out[o++] = (byte) token;
+		if (count >= 15)
+			o = writeExtension(out, o, count - 15);
+
+		System.arraycopy(src, start, out, o, count);
+		return o + count;
+	}
+
+	/** Write the rest of a copy length whose token nibble was 15. */
+	private static int writeLength(byte[] out, int o, int matchCode) {
+		if (matchCode >= 15)
+			o = writeExtension(out, o, matchCode - 15);
+		return o;
+	}
+
+	private static int writeExtension(byte[] out, int o, int value) {
+		while (value >= 255) {
+			out[o++] = (byte) 255;
+			value -= 255;
+		}
+		out[o++] = (byte) value;
+		return o;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8)
+				| ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		int pageSize = Processor.pageSize;
+		byte[] page = new byte[pageSize];
+		byte[] copy = new byte[pageSize];
+
+		// an array of small integers, like a user program's data
+		for (int i = 0; i < pageSize; i += 4)
+			Lib.bytesFromInt(page, i, i / 4 % 20);
+		byte[] packed = compress(page, 0, pageSize);
+		Lib.assertTrue(packed != null && packed.length < pageSize / 4);
+		decompress(packed, copy, 0, pageSize);
+		Lib.assertTrue(Arrays.equals(page, copy));
+
+		// random bytes do not compress
+		new Random(0).nextBytes(page);
+		Lib.assertTrue(compress(page, 0, pageSize) == null);
+
+		// long literal runs and long matches
+		for (int i = pageSize / 2; i < pageSize; i++)
+			page[i] = 7;
+		packed = compress(page, 0, pageSize);
+		Lib.assertTrue(packed != null);
+		decompress(packed, copy, 0, pageSize);
+		Lib.assertTrue(Arrays.equals(page, copy));
+
+		System.out.println("PageCompressor: compressed a page to "
+				+ packed.length + " bytes");
+	}
+
+	private static final int minMatch = 4;
+
+	private static final int maxDistance = 65535;
+
+	private static final int hashBits = 12;
+
+	private static final int hashSize = 1 << hashBits;
+
+	private static final int hashMultiplier = -1640531535;
+}
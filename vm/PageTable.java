@@ -0,0 +1,339 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * A page table packed into <tt>int</tt>s: each virtual page is described by
+ * one word holding its physical page number and its valid, read-only, used
+ * and dirty bits, instead of by a <tt>TranslationEntry</tt>. A page that is
+ * not resident is described by a word of 0.
+ *
+ * <p>
+ * The words are kept in a two-level radix table: a directory of leaves of
+ * <tt>leafSize</tt> pages each. A leaf is only allocated when one of its
+ * pages is made valid, and is dropped again when the last of them becomes
+ * invalid, so the large gaps an address space has between its executable
+ * and any mapped files take only a directory slot per leaf.
+ *
+ * <p>
+ * The processor only understands <tt>TranslationEntry</tt> objects, so
+ * <tt>getEntry()</tt> makes one for a page when the processor needs it; see
+ * <tt>TLBManager</tt>. The table is not synchronized: callers hold
+ * <tt>VMKernel.memoryLock</tt>.
+ */
+public class PageTable {
+	/**
+	 * Allocate a new page table with no valid pages.
+	 *
+	 * @param numPages the number of virtual pages.
+	 */
+	public PageTable(int numPages) {
+		Lib.assertTrue(numPages >= 0);
+
+		this.numPages = numPages;
+		leaves = new int[Lib.divRoundUp(numPages, leafSize)][];
+		leafCounts = new int[leaves.length];
+	}
+
+	/**
+	 * Return the number of virtual pages this table covers.
+	 *
+	 * @return the number of pages.
+	 */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Extend the table to cover more virtual pages, all invalid.
+	 *
+	 * @param numPages the new number of pages, no less than the old.
+	 */
+	public void grow(int numPages) {
+		Lib.assertTrue(numPages >= this.numPages);
+
+		this.numPages = numPages;
+		leaves = Arrays.copyOf(leaves, Lib.divRoundUp(numPages, leafSize));
+		leafCounts = Arrays.copyOf(leafCounts, leaves.length);
+	}
+
+	/**
+	 * Test whether a page is resident.
+	 *
+	 * @param vpn the virtual page.
+	 * @return <tt>true</tt> if the page is valid.
+	 */
+	public boolean isValid(int vpn) {
+		return (get(vpn) & validBit) != 0;
+	}
+
+	/**
+	 * Return the physical page a valid page is mapped to.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the physical page number.
+	 */
+	public int getPPN(int vpn) {
+		return get(vpn) >>> ppnShift;
+	}
+
+	/**
+	 * Test whether a page is mapped read-only.
+	 *
+	 * @param vpn the virtual page.
+	 * @return <tt>true</tt> if the page may not be written.
+	 */
+	public boolean isReadOnly(int vpn) {
+		return (get(vpn) & readOnlyBit) != 0;
+	}
+
+	/**
+	 * Test whether a page has been used since its used bit was last
+	 * cleared.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the used bit.
+	 */
+	public boolean isUsed(int vpn) {
+		return (get(vpn) & usedBit) != 0;
+	}
+
+	/**
+	 * Test whether a page has been modified since its dirty bit was last
+	 * cleared.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the dirty bit.
+	 */
+	public boolean isDirty(int vpn) {
+		return (get(vpn) & dirtyBit) != 0;
+	}
+
+	/**
+	 * Make a page valid, mapped to a physical page and marked used.
+	 *
+	 * @param vpn the virtual page.
+	 * @param ppn the physical page.
+	 * @param readOnly <tt>true</tt> if the page may not be written.
+	 * @param dirty the initial dirty bit.
+	 */
+	public void map(int vpn, int ppn, boolean readOnly, boolean dirty) {
+		Lib.assertTrue(ppn >= 0 && ppn <= maxPPN);
+
+		int word = (ppn << ppnShift) | validBit | usedBit;
+		if (readOnly)
+			word |= readOnlyBit;
+		if (dirty)
+			word |= dirtyBit;
+		set(vpn, word);
+	}
+
+	/**
+	 * Map a valid page to a different physical page, keeping its bits.
+	 *
+	 * @param vpn the virtual page.
+	 * @param ppn the new physical page.
+	 */
+	public void setPPN(int vpn, int ppn) {
+		Lib.assertTrue(isValid(vpn) && ppn >= 0 && ppn <= maxPPN);
+
+		set(vpn, (get(vpn) & flagMask) | (ppn << ppnShift));
+	}
+
+	/**
+	 * Make a page invalid, forgetting everything about it.
+	 *
+	 * @param vpn the virtual page.
+	 */
+	public void clear(int vpn) {
+		set(vpn, 0);
+	}
+
+	/**
+	 * Set or clear the read-only bit of a valid page.
+	 *
+	 * @param vpn the virtual page.
+	 * @param readOnly the new read-only bit.
+	 */
+	public void setReadOnly(int vpn, boolean readOnly) {
+		setFlag(vpn, readOnlyBit, readOnly);
+	}
+
+	/**
+	 * Set or clear the used bit of a valid page.
+	 *
+	 * @param vpn the virtual page.
+	 * @param used the new used bit.
+	 */
+	public void setUsed(int vpn, boolean used) {
+		setFlag(vpn, usedBit, used);
+	}
+
+	/**
+	 * Set or clear the dirty bit of a valid page.
+	 *
+	 * @param vpn the virtual page.
+	 * @param dirty the new dirty bit.
+	 */
+	public void setDirty(int vpn, boolean dirty) {
+		setFlag(vpn, dirtyBit, dirty);
+	}
+
+	/**
+	 * Return a <tt>TranslationEntry</tt> describing a page, for the processor.
+	 * The entry is a copy: changing it does not change the table.
+	 *
+	 * @param vpn the virtual page.
+	 * @return a new entry, invalid if the page is not resident.
+	 */
+	public TranslationEntry getEntry(int vpn) {
+		int word = get(vpn);
+		if ((word & validBit) == 0)
+			return new TranslationEntry(vpn, 0, false, false, false, false);
+
+		return new TranslationEntry(vpn, word >>> ppnShift, true,
+				(word & readOnlyBit) != 0, (word & usedBit) != 0,
+				(word & dirtyBit) != 0);
+	}
+
+	/**
+	 * Set the used and dirty bits of a valid page from a copy of its entry
+	 * that the processor has used, leaving any bits already set.
+	 *
+	 * @param vpn the virtual page.
+	 * @param copy the processor's copy of the entry.
+	 */
+	public void mergeEntry(int vpn, TranslationEntry copy) {
+		if (!isValid(vpn))
+			return;
+
+		if (copy.used)
+			setUsed(vpn, true);
+		if (copy.dirty)
+			setDirty(vpn, true);
+	}
+
+	/**
+	 * Return the next valid page at or after a virtual page, skipping leaves
+	 * that are not allocated.
+	 *
+	 * @param vpn the virtual page to start at.
+	 * @return the virtual page number, or -1 if no later page is valid.
+	 */
+	public int nextValid(int vpn) {
+		while (vpn < numPages) {
+			if (leaves[vpn / leafSize] == null) {
+				vpn = (vpn / leafSize + 1) * leafSize;
+				continue;
+			}
+			if (isValid(vpn))
+				return vpn;
+			vpn++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the number of leaves allocated.
+	 *
+	 * @return the number of leaves.
+	 */
+	public int getNumLeaves() {
+		int count = 0;
+		for (int[] leaf : leaves) {
+			if (leaf != null)
+				count++;
+		}
+		return count;
+	}
+
+	private int get(int vpn) {
+		Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
+		int[] leaf = leaves[vpn / leafSize];
+		return (leaf == null) ? 0 : leaf[vpn % leafSize];
+	}
+
+	private void set(int vpn, int word) {
+		Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
+		int index = vpn / leafSize;
+		int[] leaf = leaves[index];
+		if (leaf == null) {
+			if (word == 0)
+				return;
+			leaf = leaves[index] = new int[leafSize];
+		}
+
+		int old = leaf[vpn % leafSize];
+		leaf[vpn % leafSize] = word;
+
+		if (old == 0 && word != 0)
+			leafCounts[index]++;
+		else if (old != 0 && word == 0 && --leafCounts[index] == 0)
+			leaves[index] = null;
+	}
+
+	private void setFlag(int vpn, int bit, boolean value) {
+		Lib.assertTrue(isValid(vpn));
+
+		set(vpn, value ? (get(vpn) | bit) : (get(vpn) & ~bit));
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		PageTable table = new PageTable(100);
+
+		table.map(3, 7, false, false);
+		table.map(70, maxPPN, true, true);
+		Lib.assertTrue(table.getNumLeaves() == 2);
+		Lib.assertTrue(table.isValid(3) && table.getPPN(3) == 7
+				&& table.isUsed(3) && !table.isDirty(3) && !table.isReadOnly(3));
+		Lib.assertTrue(table.getPPN(70) == maxPPN && table.isReadOnly(70)
+				&& table.isDirty(70) && !table.isValid(4));
+
+		table.setUsed(3, false);
+		TranslationEntry copy = table.getEntry(3);
+		Lib.assertTrue(copy.valid && copy.ppn == 7 && !copy.used);
+		copy.dirty = true;
+		table.mergeEntry(3, copy);
+		Lib.assertTrue(table.isDirty(3) && !table.isUsed(3));
+
+		Lib.assertTrue(table.nextValid(0) == 3 && table.nextValid(4) == 70
+				&& table.nextValid(71) == -1);
+
+		table.grow(1000);
+		table.map(999, 1, false, false);
+		table.clear(3);
+		table.clear(70);
+		Lib.assertTrue(table.getNumLeaves() == 1 && table.nextValid(0) == 999);
+
+		System.out.println("PageTable: mapped and cleared 3 pages in "
+				+ table.leaves.length + " leaf slots");
+	}
+
+	private int numPages;
+
+	/** The words of each leaf of pages, or <tt>null</tt> if none is valid. */
+	private int[][] leaves;
+
+	/** The number of nonzero words in each leaf. */
+	private int[] leafCounts;
+
+	/** The number of pages described by one leaf. */
+	public static final int leafSize = 64;
+
+	private static final int validBit = 1, readOnlyBit = 2, usedBit = 4,
+			dirtyBit = 8;
+
+	private static final int flagMask = 15;
+
+	private static final int ppnShift = 4;
+
+	/** The largest physical page number a word can hold. */
+	private static final int maxPPN = (1 << (32 - ppnShift)) - 1;
+}
@@ -0,0 +1,113 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides which resident page to evict when a page fault finds no free
+ * frame. The kernel tells the policy when a page is brought into a frame and
+ * when it leaves, and asks it for a victim; the policy sees the state of each
+ * frame through <tt>VMKernel.InvertedPageTable</tt>.
+ *
+ * <p>
+ * Every method is called with <tt>VMKernel.memoryLock</tt> held. The policy
+ * to use is named by the <tt>VMKernel.replacementPolicy</tt> configuration
+ * key.
+ *
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.WSClockPolicy
+ * @see nachos.vm.ClockProPolicy
+ */
+public abstract class ReplacementPolicy {
+	/**
+	 * Allocate a new replacement policy for every physical page of the
+	 * machine.
+	 */
+	public ReplacementPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	/**
+	 * Called when a page has been read into frame <i>ppn</i> and mapped.
+	 *
+	 * @param ppn the frame.
+	 */
+	public void pageLoaded(int ppn) {
+	}
+
+	/**
+	 * Called just before the page in frame <i>ppn</i> is evicted or released
+	 * by its process, while <tt>InvertedPageTable[ppn]</tt> still describes
+	 * it.
+	 *
+	 * @param ppn the frame.
+	 * @param evicted <tt>true</tt> if the page is being evicted, and
+	 * <tt>false</tt> if its process is done with it.
+	 */
+	public void pageRemoved(int ppn, boolean evicted) {
+	}
+
+	/**
+	 * Choose a resident page to evict. The page must be evictable (see
+	 * <tt>isEvictable()</tt>). A policy that prefers clean pages may pass over
+	 * dirty ones, handing them to <tt>VMKernel.scheduleWriteback()</tt> so
+	 * that they are clean the next time around.
+	 *
+	 * @return the frame holding the victim, or -1 if no page can be evicted
+	 * right now.
+	 */
+	public abstract int chooseVictim();
+
+	/**
+	 * Test whether the page in a frame may be evicted: the frame holds a page
+	 * and is not pinned.
+	 */
+	protected static boolean isEvictable(int ppn) {
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+		return frame.process != null && frame.pinCount == 0;
+	}
+
+	/**
+	 * Test whether the page in a frame has been modified since it was last
+	 * read from or written to its backing store.
+	 */
+	protected static boolean isDirty(int ppn) {
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+
+		// a sharer may have written a mapped file's page, and a forked
+		// child's shared page is dirty until it is in the child's swap
+		boolean dirty = frame.process.getPageTable().isDirty(frame.vpn);
+		for (VMKernel.VirtualPage sharer : frame.sharers)
+			dirty |= sharer.process.getPageTable().isDirty(sharer.vpn);
+		return dirty;
+	}
+
+	/**
+	 * Test and clear the used bit of the page in a frame, in every page table
+	 * that maps it.
+	 *
+	 * @return <tt>true</tt> if any process used the page since the last call.
+	 */
+	protected static boolean testAndClearUsed(int ppn) {
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+
+		boolean used = testAndClearUsed(frame.process, frame.vpn)
+				| frame.referenced;
+		frame.referenced = false;
+		for (VMKernel.VirtualPage sharer : frame.sharers)
+			used |= testAndClearUsed(sharer.process, sharer.vpn);
+		if (used)
+			frame.prefetched = false;
+		return used;
+	}
+
+	private static boolean testAndClearUsed(VMProcess process, int vpn) {
+		PageTable pages = process.getPageTable();
+		boolean used = pages.isUsed(vpn);
+		pages.setUsed(vpn, false);
+		VMKernel.tlb.update(process, vpn);
+		return used;
+	}
+
+	/** The number of physical pages. */
+	protected int numFrames;
+}
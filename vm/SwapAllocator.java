@@ -0,0 +1,180 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * Tracks which pages of the swap file are in use with a bitmap. Runs of
+ * adjacent pages are allocated first fit from the start of the file, so
+ * the file only grows when there is no free run low enough, and pages
+ * freed near the start are reused before pages near the end.
+ *
+ * <p>
+ * The allocator is not synchronized: callers hold <tt>VMKernel.swapLock</tt>.
+ */
+public class SwapAllocator {
+	/**
+	 * Allocate a new allocator with every page free.
+	 */
+	public SwapAllocator() {
+		used = new long[1];
+	}
+
+	/**
+	 * Allocate a run of adjacent swap pages, extending the file if no free
+	 * run is long enough.
+	 *
+	 * @param count the number of pages.
+	 * @return the first page of the run.
+	 */
+	public int allocate(int count) {
+		Lib.assertTrue(count > 0);
+
+		int first = 0;
+		while (true) {
+			first = nextFree(first);
+
+			int end = first;
+			while (end < first + count && !isAllocated(end))
+				end++;
+
+			if (end == first + count)
+				break;
+			first = end;
+		}
+
+		for (int i = first; i < first + count; i++)
+			setAllocated(i, true);
+		numUsed += count;
+		size = Math.max(size, first + count);
+		peakSize = Math.max(peakSize, size);
+
+		return first;
+	}
+
+	/**
+	 * Free a swap page.
+	 *
+	 * @param page the page.
+	 */
+	public void free(int page) {
+		free(page, 1);
+	}
+
+	/**
+	 * Free a run of adjacent swap pages.
+	 *
+	 * @param first the first page of the run.
+	 * @param count the number of pages.
+	 */
+	public void free(int first, int count) {
+		for (int i = first; i < first + count; i++) {
+			Lib.assertTrue(isAllocated(i), "swap page " + i + " freed twice");
+			setAllocated(i, false);
+		}
+		numUsed -= count;
+
+		while (size > 0 && !isAllocated(size - 1))
+			size--;
+	}
+
+	/**
+	 * Test whether a swap page is allocated.
+	 *
+	 * @param page the page.
+	 * @return <tt>true</tt> if the page is allocated.
+	 */
+	public boolean isAllocated(int page) {
+		if (page / 64 >= used.length)
+			return false;
+
+		return (used[page / 64] & (1L << (page % 64))) != 0;
+	}
+
+	/**
+	 * Return the number of allocated swap pages.
+	 *
+	 * @return the number of allocated pages.
+	 */
+	public int getNumUsed() {
+		return numUsed;
+	}
+
+	/**
+	 * Return the number of swap pages up to and including the last
+	 * allocated one: how long the swap file needs to be.
+	 *
+	 * @return the number of pages the file must hold.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Return the largest value <tt>getSize()</tt> has had.
+	 *
+	 * @return the peak size, in pages.
+	 */
+	public int getPeakSize() {
+		return peakSize;
+	}
+
+	/** Return the first free page at or after <i>page</i>. */
+	private int nextFree(int page) {
+		while (page / 64 < used.length && used[page / 64] == -1L)
+			page = (page / 64 + 1) * 64;
+		while (isAllocated(page))
+			page++;
+		return page;
+	}
+
+	private void setAllocated(int page, boolean allocated) {
+		if (page / 64 >= used.length)
+			used = Arrays.copyOf(used, Math.max(used.length * 2, page / 64 + 1));
+
+		if (allocated)
+			used[page / 64] |= 1L << (page % 64);
+		else
+			used[page / 64] &= ~(1L << (page % 64));
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		SwapAllocator swap = new SwapAllocator();
+
+		int a = swap.allocate(8);
+		int b = swap.allocate(100);
+		int c = swap.allocate(8);
+		Lib.assertTrue(a == 0 && b == 8 && c == 108);
+		Lib.assertTrue(swap.getNumUsed() == 116 && swap.getSize() == 116);
+
+		// a hole is reused before the file grows
+		swap.free(b + 10, 20);
+		Lib.assertTrue(swap.allocate(15) == b + 10);
+		Lib.assertTrue(swap.allocate(6) == 116);
+
+		swap.free(c, 8);
+		swap.free(116, 6);
+		Lib.assertTrue(swap.getSize() == 108 && swap.getPeakSize() == 122);
+
+		swap.free(a, 8);
+		swap.free(b, 10);
+		swap.free(b + 10, 15);
+		swap.free(b + 30, 70);
+		Lib.assertTrue(swap.getNumUsed() == 0 && swap.getSize() == 0);
+
+		System.out.println("SwapAllocator: 122 pages allocated and freed");
+	}
+
+	/** One bit per swap page, set if the page is allocated. */
+	private long[] used;
+
+	private int numUsed = 0;
+
+	private int size = 0;
+
+	private int peakSize = 0;
+}
@@ -0,0 +1,347 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * Manages the translations the processor uses: its TLB when it translates
+ * through one, and otherwise the array of <tt>TranslationEntry</tt> objects
+ * it walks as a page table. Processes keep their page tables packed in a
+ * <tt>PageTable</tt>, so either way the processor is given copies of their
+ * entries.
+ *
+ * <p>
+ * Each TLB slot is tagged with the process and virtual page it was loaded
+ * from, which stands in for the address space identifier the hardware lacks.
+ * On a context switch only the slots of the outgoing process are cleared in
+ * the processor; their tags are kept, so if the process runs again before
+ * its slots are reused, they are reloaded from its page table instead of each
+ * being missed on again.
+ *
+ * <p>
+ * Without a TLB, one array is shared by every process: when a process is
+ * switched to, it is loaded with an entry for each of its valid pages, and
+ * from then on it is kept in step with its page table, so the processor
+ * never faults on a resident page.
+ *
+ * <p>
+ * The processor sets the used and dirty bits of its own copy of an entry,
+ * so <tt>sync()</tt> must be called when the kernel is entered, before
+ * those bits are read from the page tables, and <tt>update()</tt> whenever
+ * the kernel changes a page that may be loaded in the processor.
+ *
+ * <p>
+ * The slots can be divided into sets, selected by virtual page number, with
+ * <tt>TLBManager.associativity</tt> slots each; by default there is one set,
+ * so any page may use any slot. A page is only loaded into its own set, so
+ * finding the slot of a page takes one pass over a set. The processor
+ * searches its whole TLB, whose size it fixes, on every access regardless,
+ * so smaller sets only model the conflict misses of a set-associative TLB.
+ *
+ * <p>
+ * Callers hold <tt>VMKernel.memoryLock</tt>, except for <tt>sync()</tt> and
+ * <tt>switchTo()</tt>, which do not sleep and so need no lock since threads
+ * are not preempted.
+ */
+public class TLBManager {
+	/**
+	 * Allocate a new manager for the processor's TLB or page table.
+	 */
+	public TLBManager() {
+		usingTLB = Machine.processor().hasTLB();
+		if (!usingTLB) {
+			pageTable = new TranslationEntry[0];
+			return;
+		}
+
+		int size = Machine.processor().getTLBSize();
+		owners = new VMProcess[size];
+		vpns = new int[size];
+
+		associativity = Config.getInteger("TLBManager.associativity", size);
+		// an instruction may need its own page and a data page at once
+		Lib.assertTrue(associativity >= 2 && size % associativity == 0,
+				"TLB associativity must be at least 2 and divide the TLB size");
+		numSets = size / associativity;
+	}
+
+	/**
+	 * Copy the used and dirty bits the processor has set back to the page
+	 * table of the process they were loaded from.
+	 */
+	public void sync() {
+		if (!usingTLB) {
+			if (current == null)
+				return;
+
+			PageTable pages = current.getPageTable();
+			for (int vpn = pages.nextValid(0); vpn != -1; vpn = pages
+					.nextValid(vpn + 1)) {
+				if (pageTable[vpn] != null)
+					pages.mergeEntry(vpn, pageTable[vpn]);
+			}
+			return;
+		}
+
+		Processor processor = Machine.processor();
+		for (int i = 0; i < owners.length; i++) {
+			if (!isLoaded(i))
+				continue;
+
+			TranslationEntry copy = processor.readTLBEntry(i);
+			if (copy.valid)
+				owners[i].getPageTable().mergeEntry(vpns[i], copy);
+		}
+	}
+
+	/**
+	 * Load the translations of a process that is about to run, replacing
+	 * those of the process that ran last.
+	 *
+	 * @param process the process.
+	 */
+	public void switchTo(VMProcess process) {
+		if (process == current)
+			return;
+
+		sync();
+
+		if (!usingTLB) {
+			if (current != null)
+				unloadPageTable();
+
+			current = null;
+
+			// a process that has exited may still run in the kernel
+			PageTable pages = process.getPageTable();
+			if (pages != null) {
+				current = process;
+				for (int vpn = pages.nextValid(0); vpn != -1; vpn = pages
+						.nextValid(vpn + 1))
+					load(vpn);
+			}
+			Machine.processor().setPageTable(pageTable);
+			return;
+		}
+
+		current = process;
+
+		Processor processor = Machine.processor();
+		for (int i = 0; i < owners.length; i++) {
+			if (owners[i] == process
+					&& process.getPageTable().isValid(vpns[i])) {
+				processor.writeTLBEntry(i, copyOf(process, vpns[i]));
+				numRestored++;
+			}
+			else {
+				processor.writeTLBEntry(i, invalid);
+			}
+		}
+	}
+
+	/**
+	 * Load a valid page of the running process after a TLB miss, replacing
+	 * an entry that has not been used recently.
+	 *
+	 * @param process the running process.
+	 * @param vpn the virtual page, which must be valid.
+	 */
+	public void refill(VMProcess process, int vpn) {
+		Lib.assertTrue(process == current
+				&& process.getPageTable().isValid(vpn));
+
+		if (!usingTLB) {
+			load(vpn);
+			return;
+		}
+
+		int slot = chooseVictim(vpn);
+		owners[slot] = process;
+		vpns[slot] = vpn;
+		Machine.processor().writeTLBEntry(slot, copyOf(process, vpn));
+		numRefills++;
+	}
+
+	/**
+	 * Bring whatever the processor has loaded for a page up to date with its
+	 * page table, after the kernel has changed it. A page that is no longer
+	 * valid is dropped.
+	 *
+	 * @param process the process whose page changed.
+	 * @param vpn the virtual page.
+	 */
+	public void update(VMProcess process, int vpn) {
+		if (!usingTLB) {
+			if (process == current)
+				load(vpn);
+			return;
+		}
+
+		boolean valid = process.getPageTable().isValid(vpn);
+		int first = setOf(vpn);
+		for (int i = first; i < first + associativity; i++) {
+			if (owners[i] != process || vpns[i] != vpn)
+				continue;
+
+			boolean loaded = isLoaded(i);
+			if (!valid)
+				owners[i] = null;
+			if (loaded)
+				Machine.processor().writeTLBEntry(i,
+						valid ? copyOf(process, vpn) : invalid);
+		}
+	}
+
+	/**
+	 * Drop everything loaded for a process that is exiting.
+	 *
+	 * @param process the process.
+	 */
+	public void flush(VMProcess process) {
+		sync();
+
+		if (!usingTLB) {
+			if (current == process) {
+				unloadPageTable();
+				current = null;
+			}
+			return;
+		}
+
+		for (int i = 0; i < owners.length; i++) {
+			if (owners[i] != process)
+				continue;
+
+			if (isLoaded(i))
+				Machine.processor().writeTLBEntry(i, invalid);
+			owners[i] = null;
+		}
+		if (current == process)
+			current = null;
+	}
+
+	/**
+	 * Return a line of statistics about the TLB, or <tt>null</tt> if the
+	 * processor has none. The machine prints the number of misses itself,
+	 * from <tt>Stats.numTLBMisses</tt>.
+	 *
+	 * @return the statistics.
+	 */
+	public String getStatistics() {
+		if (!usingTLB)
+			return null;
+
+		return owners.length + " entries, " + associativity + "-way, refills "
+				+ numRefills + ", entries kept across switches " + numRestored;
+	}
+
+	/**
+	 * Set the processor's entry for a page of the running process from its
+	 * page table, growing the array the processor walks if the page is
+	 * beyond it.
+	 */
+	private void load(int vpn) {
+		PageTable pages = current.getPageTable();
+		boolean valid = pages.isValid(vpn);
+
+		if (vpn >= pageTable.length) {
+			if (!valid)
+				return;
+			pageTable = Arrays.copyOf(pageTable, Math.max(pages.getNumPages(),
+					vpn + 1));
+			Machine.processor().setPageTable(pageTable);
+		}
+
+		pageTable[vpn] = valid ? copyOf(current, vpn) : null;
+	}
+
+	/** Clear the entries of the running process from the processor's array. */
+	private void unloadPageTable() {
+		PageTable pages = current.getPageTable();
+		for (int vpn = pages.nextValid(0); vpn != -1; vpn = pages
+				.nextValid(vpn + 1)) {
+			if (vpn < pageTable.length)
+				pageTable[vpn] = null;
+		}
+	}
+
+	/**
+	 * Choose the slot in a page's set for a new entry by not-recently-used:
+	 * an empty slot if there is one, otherwise a random slot whose entry has
+	 * not been used since the used bits were last cleared. If every entry in
+	 * the set has been used, clear their used bits, after copying them to the
+	 * page tables, and choose any slot of the set at random.
+	 */
+	private int chooseVictim(int vpn) {
+		Processor processor = Machine.processor();
+		int first = setOf(vpn);
+
+		int[] unused = new int[associativity];
+		int numUnused = 0;
+		for (int i = first; i < first + associativity; i++) {
+			TranslationEntry copy = processor.readTLBEntry(i);
+			if (!copy.valid)
+				return i;
+			if (!copy.used)
+				unused[numUnused++] = i;
+		}
+
+		if (numUnused > 0)
+			return unused[Lib.random(numUnused)];
+
+		sync();
+		for (int i = first; i < first + associativity; i++) {
+			TranslationEntry copy = processor.readTLBEntry(i);
+			copy.used = false;
+			processor.writeTLBEntry(i, copy);
+		}
+		return first + Lib.random(associativity);
+	}
+
+	/** Return the first slot of the set a virtual page maps to. */
+	private int setOf(int vpn) {
+		return (vpn % numSets) * associativity;
+	}
+
+	/** Whether a slot holds a page of the process whose slots are loaded. */
+	private boolean isLoaded(int slot) {
+		return owners[slot] != null && owners[slot] == current;
+	}
+
+	/**
+	 * Return the entry to give the processor for a valid page. Its used bit
+	 * starts clear, so that it records only use since it was loaded.
+	 */
+	private static TranslationEntry copyOf(VMProcess process, int vpn) {
+		TranslationEntry entry = process.getPageTable().getEntry(vpn);
+		entry.used = false;
+		return entry;
+	}
+
+	private boolean usingTLB;
+
+	/**
+	 * The process each slot was loaded from, or <tt>null</tt>, and the
+	 * virtual page.
+	 */
+	private VMProcess[] owners;
+
+	private int[] vpns;
+
+	/** The number of slots in each set, and the number of sets. */
+	private int associativity, numSets;
+
+	/**
+	 * Without a TLB, the array the processor walks, holding an entry for
+	 * every valid page of the running process and <tt>null</tt> elsewhere.
+	 */
+	private TranslationEntry[] pageTable;
+
+	/** The process whose translations are loaded in the processor. */
+	private VMProcess current = null;
+
+	private int numRefills = 0, numRestored = 0;
+
+	private static final TranslationEntry invalid = new TranslationEntry();
+}
@@ -1,5 +1,9 @@
 package nachos.vm;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 import nachos.machine.*;
@@ -24,22 +28,58 @@ public class VMKernel extends UserKernel {
 	public void initialize(String[] args) {
 		super.initialize(args);
 		swapFile = ThreadedKernel.fileSystem.open("SWAPFILE", true);
-		freeSwapPages = new LinkedList<>();
-		currSwapPointer = 0;
-		totalpins = 0;
-		VMLock = new Lock();
-		CV = new Condition(VMLock);
+		swapAllocator = new SwapAllocator();
+		swapClusterSize = Config.getInteger("VMKernel.swapClusterSize", 8);
+		prefetchMax = Config.getInteger("VMKernel.prefetchMax", 4);
+		maxVirtualPages = Config.getInteger("VMKernel.maxVirtualPages", 4096);
+		// in a small memory, zeroing pages early costs more than it saves
+		hugePageSize = Config.getInteger("VMKernel.hugePageSize", Machine
+				.processor().getNumPhysPages() >= 16 ? 4 : 0);
+		Lib.assertTrue(hugePageSize >= 0
+				&& (hugePageSize & (hugePageSize - 1)) == 0,
+				"huge page size must be a power of two");
+		swapCache = new CompressedSwapCache(Config.getInteger(
+				"VMKernel.swapCacheBytes", Machine.processor().getNumPhysPages()
+						* Processor.pageSize / 2));
+		swapLock = new Lock();
+		memoryLock = new Lock();
+		frameAvailable = new Condition2(memoryLock);
+		pageReady = new Condition2(memoryLock);
 		InvertedPageTable = new InvertedPageEntry[Machine.processor().getNumPhysPages() + 1];
 		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){
-			InvertedPageTable[i] = new InvertedPageEntry(null, false, null);
+			InvertedPageTable[i] = new InvertedPageEntry(null, -1);
 		}
-		toEvict = 0;
+
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockProPolicy");
+		replacementPolicy = (ReplacementPolicy) Lib.constructObject(policyName);
+		tlb = new TLBManager();
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		writebackQueued = new boolean[numPhysPages];
+		pageoutNeeded = new Condition2(memoryLock);
+		pageoutLowWater = Config.getInteger("VMKernel.pageoutLowWater", Math
+				.max(1, numPhysPages / 8));
+		pageoutBatch = Config.getInteger("VMKernel.pageoutBatch", Math.max(1,
+				Math.min(8, numPhysPages / 4)));
+
+		workingSetInterval = Config.getInteger("VMKernel.workingSetInterval",
+				2000);
+		workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 4);
+		admissionPages = Config.getInteger("VMKernel.admissionPages", 3);
+		admissionTimeout = Config.getInteger("VMKernel.admissionTimeout",
+				200000);
+		dedupInterval = Config.getInteger("VMKernel.dedupInterval", 20000);
 	}
 
 	/**
 	 * Test this kernel.
 	 */
 	public void selfTest() {
+		SwapAllocator.selfTest();
+		PageCompressor.selfTest();
+		PageTable.selfTest();
+
 		super.selfTest();
 	}
 
@@ -47,30 +87,593 @@ public class VMKernel extends UserKernel {
 	 * Start running user programs.
 	 */
 	public void run() {
+		new KThread(new Runnable() {
+			public void run() {
+				pageout();
+			}
+		}).setName("pageout").fork();
+
+		new KThread(new Runnable() {
+			public void run() {
+				sampleWorkingSets();
+			}
+		}).setName("working sets").fork();
+
+		if (dedupInterval > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					dedup();
+				}
+			}).setName("dedup").fork();
+		}
+
 		super.run();
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, reporting paging statistics if the <tt>v</tt>
+	 * debug flag is set. Never returns.
 	 */
 	public void terminate() {
+		Lib.debug(dbgVM, "VM: " + replacementPolicy.getClass().getSimpleName()
+				+ ", page-ins " + numPageIns + ", evictions " + numEvictions
+				+ ", swap reads " + numSwapReads + ", swap writes "
+				+ numSwapWrites + ", writebacks " + numWritebacks + " in "
+				+ numPageoutWrites + " writes");
+		Lib.debug(dbgVM, "VM swap: peak " + swapAllocator.getPeakSize()
+				+ " pages, " + swapAllocator.getNumUsed() + " in use, "
+				+ numSwapTruncations + " truncations");
+		Lib.debug(dbgVM, "VM swap cache: " + swapCache.getStatistics());
+		Lib.debug(dbgVM, "VM prefetch: " + numPrefetches + " pages, "
+				+ numPrefetchesWasted + " evicted unused");
+		Lib.debug(dbgVM, "VM working sets: " + numSamples
+				+ " samples, peak total " + peakTotalWorkingSet + " pages, "
+				+ numAdmissionDelays + " execs delayed");
+		Lib.debug(dbgVM, "VM huge pages: " + numHugePages + " of "
+				+ hugePageSize + " pages, " + numHugePageFallbacks
+				+ " faults with no free run");
+		Lib.debug(dbgVM, "VM mmap: file reads " + numFileReads
+				+ ", file writes " + numFileWrites);
+		Lib.debug(dbgVM, "VM dedup: " + numMerges + " merges, "
+				+ numMergesBroken + " copy-on-write breaks, "
+				+ countMergedPages() * Processor.pageSize + " bytes saved now, peak "
+				+ peakMergedPages * Processor.pageSize);
+		Lib.debug(dbgVM, "VM fork: " + numForkShares
+				+ " pages shared copy-on-write, " + numForkCopies
+				+ " copied on write, " + numForkSwapCopies + " copied from swap");
+		if (tlb.getStatistics() != null)
+			Lib.debug(dbgVM, "VM TLB: " + tlb.getStatistics());
+
 		swapFile.close();
 		ThreadedKernel.fileSystem.remove("SWAPFILE");
 		super.terminate();
 	}
 
+	/**
+	 * The body of the working set thread. Every <tt>workingSetInterval</tt>
+	 * ticks it sleeps through, it samples the working sets of every process.
+	 * It holds <tt>memoryLock</tt> while it does, since sampling clears used
+	 * bits and marks frames referenced, which must not happen in the middle
+	 * of an eviction or a copy-on-write break.
+	 */
+	private static void sampleWorkingSets() {
+		while (true) {
+			alarm.waitUntil(workingSetInterval);
+
+			memoryLock.acquire();
+			tlb.sync();
+			numSamples++;
+
+			int total = 0;
+			for (VMProcess process : processes)
+				total += process.sampleWorkingSet(numSamples);
+			totalWorkingSet = total;
+			peakTotalWorkingSet = Math.max(peakTotalWorkingSet, total);
+			memoryLock.release();
+		}
+	}
+
+	/**
+	 * Test whether starting a new process would take the estimated working
+	 * sets of all processes beyond physical memory. A new process is
+	 * assumed to need <tt>admissionPages</tt> pages. Memory is never
+	 * overcommitted if <i>parent</i> is the only process, since nothing
+	 * else could free any.
+	 *
+	 * @param parent the process that wants to start another.
+	 * @return <tt>true</tt> if the new process should wait.
+	 */
+	static boolean isOvercommitted(VMProcess parent) {
+		if (processes.size() == 1 && processes.getFirst() == parent)
+			return false;
+
+		return totalWorkingSet + admissionPages > Machine.processor()
+				.getNumPhysPages();
+	}
+
+	/**
+	 * Start sampling a process's working set. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	static void addProcess(VMProcess process) {
+		processes.add(process);
+	}
+
+	/**
+	 * Stop sampling a process's working set. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	static void removeProcess(VMProcess process) {
+		processes.remove(process);
+	}
+
+	/**
+	 * Allocate <i>count</i> adjacent pages of the swap file, as low in the
+	 * file as possible. A process takes its swap pages from such clusters so
+	 * that pages it writes out together tend to be adjacent.
+	 *
+	 * @param count the number of pages.
+	 * @return the first swap page of the run.
+	 */
+	public static int allocateSwapPages(int count) {
+		swapLock.acquire();
+		int first = swapAllocator.allocate(count);
+		swapLock.release();
+		return first;
+	}
+
+	/**
+	 * Free a run of adjacent swap pages. Once no swap page is in use, the
+	 * swap file is recreated empty, since the file system cannot shorten a
+	 * file; nothing can be reading or writing it then, because every page
+	 * being transferred is allocated.
+	 *
+	 * @param first the first swap page of the run.
+	 * @param count the number of pages.
+	 */
+	public static void freeSwapPages(int first, int count) {
+		swapLock.acquire();
+		for (int i = first; i < first + count; i++)
+			swapCache.discard(i);
+		swapAllocator.free(first, count);
+
+		if (swapAllocator.getNumUsed() == 0 && swapFile.length() > 0) {
+			swapFile.close();
+			ThreadedKernel.fileSystem.remove("SWAPFILE");
+			swapFile = ThreadedKernel.fileSystem.open("SWAPFILE", true);
+			numSwapTruncations++;
+		}
+
+		swapLock.release();
+	}
+
+	/**
+	 * Return the number of swap pages in use.
+	 *
+	 * @return the number of allocated swap pages.
+	 */
+	public static int getNumSwapPagesUsed() {
+		swapLock.acquire();
+		int count = swapAllocator.getNumUsed();
+		swapLock.release();
+		return count;
+	}
+
+	/**
+	 * Ask the pageout thread to write a dirty page to swap, so that its frame
+	 * can later be taken without waiting for a write. The page stays
+	 * resident and mapped. Called with <tt>memoryLock</tt> held.
+	 *
+	 * @param ppn the frame holding the page.
+	 */
+	public static void scheduleWriteback(int ppn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		if (writebackQueued[ppn])
+			return;
+
+		writebackQueued[ppn] = true;
+		writebackQueue.add(ppn);
+		pageoutNeeded.wake();
+	}
+
+	/**
+	 * Tell the pageout thread that a page fault had to evict a page, so that
+	 * it can check whether clean frames are running low. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	public static void wakePageout() {
+		pageoutNeeded.wake();
+	}
+
+	/**
+	 * The body of the pageout thread. Whenever fewer than
+	 * <tt>pageoutLowWater</tt> frames are free or hold clean pages that could
+	 * be evicted, or a replacement policy has scheduled a writeback, cleans
+	 * up to <tt>pageoutBatch</tt> dirty pages at once. Pages in adjacent swap
+	 * pages are written with a single request.
+	 */
+	private static void pageout() {
+		memoryLock.acquire();
+		while (true) {
+			ArrayList<Integer> batch = new ArrayList<Integer>();
+
+			while (!writebackQueue.isEmpty() && batch.size() < pageoutBatch) {
+				int ppn = writebackQueue.removeFirst();
+				writebackQueued[ppn] = false;
+				if (isCleanable(ppn))
+					batch.add(ppn);
+			}
+
+			if (getNumCleanFrames() < pageoutLowWater)
+				findDirtyFrames(batch);
+
+			if (batch.isEmpty()) {
+				pageoutNeeded.sleep();
+				continue;
+			}
+
+			writeBatch(batch);
+		}
+	}
+
+	/**
+	 * Test whether a frame holds a dirty page that the pageout thread may
+	 * write to swap: it is mapped, unpinned and not already moving, and does
+	 * not belong to a mapped file.
+	 */
+	private static boolean isCleanable(int ppn) {
+		InvertedPageEntry frame = InvertedPageTable[ppn];
+		return frame.process != null && frame.mappedFile == null
+				&& frame.process.getPageTable().isDirty(frame.vpn)
+				&& frame.pinCount == 0;
+	}
+
+	/**
+	 * Return the number of frames a page fault could get without a write:
+	 * free frames and frames holding clean, unpinned pages.
+	 */
+	private static int getNumCleanFrames() {
+		UserKernel.pagesLock.acquire();
+		int count = UserKernel.getNumFreeFrames();
+		UserKernel.pagesLock.release();
+
+		for (int ppn = 0; ppn < InvertedPageTable.length - 1; ppn++) {
+			InvertedPageEntry frame = InvertedPageTable[ppn];
+			if (frame.process != null && frame.pinCount == 0
+					&& !ReplacementPolicy.isDirty(ppn))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Add dirty pages to a batch, sweeping from where the last sweep
+	 * stopped. Pages used since the replacement policy last looked are
+	 * skipped, since they are the least likely to be evicted soon.
+	 */
+	private static void findDirtyFrames(ArrayList<Integer> batch) {
+		int numPhysPages = InvertedPageTable.length - 1;
+
+		for (int i = 0; i < numPhysPages && batch.size() < pageoutBatch; i++) {
+			int ppn = pageoutHand;
+			pageoutHand = (pageoutHand + 1) % numPhysPages;
+
+			InvertedPageEntry frame = InvertedPageTable[ppn];
+			if (isCleanable(ppn)
+					&& !frame.process.getPageTable().isUsed(frame.vpn)
+					&& !frame.referenced && !batch.contains(ppn))
+				batch.add(ppn);
+		}
+	}
+
+	/**
+	 * The body of the deduplication thread. Every <tt>dedupInterval</tt>
+	 * ticks it sleeps through, it looks for resident pages with identical
+	 * contents and maps them all to one frame, read-only, freeing the
+	 * others. A process that writes to a merged page gets a private copy
+	 * back, as with copy-on-write.
+	 *
+	 * <p>
+	 * Only clean pages are merged: their contents match their own backing
+	 * store, so evicting the shared frame needs no write, and each process
+	 * gets the page back from its own swap page or executable. Read-only
+	 * sections are already shared by executable, and mapped files by file.
+	 */
+	private static void dedup() {
+		while (true) {
+			alarm.waitUntil(dedupInterval);
+
+			memoryLock.acquire();
+			tlb.sync();
+			scanForDuplicates();
+			peakMergedPages = Math.max(peakMergedPages, countMergedPages());
+			memoryLock.release();
+		}
+	}
+
+	/**
+	 * Hash every frame that may be merged, and merge each one whose contents
+	 * match a frame already seen. Called with <tt>memoryLock</tt> held; does
+	 * not sleep.
+	 */
+	private static void scanForDuplicates() {
+		byte[] memory = Machine.processor().getMemory();
+		HashMap<Integer, LinkedList<Integer>> seen = new HashMap<Integer, LinkedList<Integer>>();
+
+		for (int ppn = 0; ppn < InvertedPageTable.length - 1; ppn++) {
+			boolean candidate = isMergeable(ppn);
+			if (!candidate && !InvertedPageTable[ppn].merged)
+				continue;
+
+			int hash = hashPage(memory, ppn);
+			LinkedList<Integer> matches = seen.get(hash);
+			if (matches == null) {
+				matches = new LinkedList<Integer>();
+				seen.put(hash, matches);
+			}
+
+			int target = -1;
+			if (candidate) {
+				for (int other : matches) {
+					if (isSamePage(memory, ppn, other)) {
+						target = other;
+						break;
+					}
+				}
+			}
+
+			if (target != -1)
+				mergeFrame(ppn, target);
+			else
+				matches.add(ppn);
+		}
+	}
+
+	/**
+	 * Test whether a frame holds a page that may be merged into another
+	 * frame: a clean, writable, unpinned page of one process, backed by
+	 * swap or by the executable, and not moving in or out of memory.
+	 */
+	private static boolean isMergeable(int ppn) {
+		InvertedPageEntry frame = InvertedPageTable[ppn];
+		if (frame.process == null)
+			return false;
+
+		PageTable pages = frame.process.getPageTable();
+		return frame.mappedFile == null && frame.pinCount == 0
+				&& frame.sharers.isEmpty() && !frame.merged
+				&& !pages.isReadOnly(frame.vpn) && !pages.isDirty(frame.vpn)
+				&& !frame.process.isPageBusy(frame.vpn);
+	}
+
+	/**
+	 * Map the page in frame <i>ppn</i> to frame <i>target</i>, which holds
+	 * the same bytes, and free <i>ppn</i>. Both pages become read-only.
+	 */
+	private static void mergeFrame(int ppn, int target) {
+		InvertedPageEntry frame = InvertedPageTable[ppn];
+		InvertedPageEntry targetFrame = InvertedPageTable[target];
+
+		if (!targetFrame.merged) {
+			targetFrame.merged = true;
+			targetFrame.process.getPageTable().setReadOnly(targetFrame.vpn, true);
+			tlb.update(targetFrame.process, targetFrame.vpn);
+		}
+
+		PageTable pages = frame.process.getPageTable();
+		pages.setPPN(frame.vpn, target);
+		pages.setReadOnly(frame.vpn, true);
+		tlb.update(frame.process, frame.vpn);
+		targetFrame.sharers.add(new VirtualPage(frame.process, frame.vpn));
+
+		replacementPolicy.pageRemoved(ppn, false);
+		frame.process = null;
+		frame.prefetched = false;
+		frame.referenced = false;
+
+		UserKernel.pagesLock.acquire();
+		UserKernel.shareFrame(target);
+		Lib.assertTrue(UserKernel.releaseFrame(ppn));
+		UserKernel.pagesLock.release();
+
+		numMerges++;
+		frameAvailable.wake();
+		Lib.debug(dbgVM, "merged frame " + ppn + " into " + target);
+	}
+
+	/**
+	 * Return the number of frames merging has saved: one for each page
+	 * sharing a merged frame with its owner.
+	 */
+	private static int countMergedPages() {
+		int count = 0;
+		for (int ppn = 0; ppn < InvertedPageTable.length - 1; ppn++) {
+			if (InvertedPageTable[ppn].merged)
+				count += InvertedPageTable[ppn].sharers.size();
+		}
+		return count;
+	}
+
+	private static int hashPage(byte[] memory, int ppn) {
+		int hash = 0;
+		for (int i = ppn * Processor.pageSize; i < (ppn + 1) * Processor.pageSize; i++)
+			hash = hash * 31 + memory[i];
+		return hash;
+	}
+
+	private static boolean isSamePage(byte[] memory, int ppn1, int ppn2) {
+		int offset1 = ppn1 * Processor.pageSize, offset2 = ppn2 * Processor.pageSize;
+		for (int i = 0; i < Processor.pageSize; i++) {
+			if (memory[offset1 + i] != memory[offset2 + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write a batch of dirty pages to swap without unmapping them. Pages that
+	 * have no swap page yet are given the next ones in their process's
+	 * cluster, so pages of one process tend to be adjacent. Every page is marked
+	 * clean, pinned and copied before <tt>memoryLock</tt> is released for the
+	 * writes, so a write to a page during the transfer leaves it dirty again.
+	 */
+	private static void writeBatch(ArrayList<Integer> batch) {
+		ArrayList<PageWrite> writes = new ArrayList<PageWrite>();
+		for (int ppn : batch) {
+			PageWrite write = new PageWrite();
+			write.ppn = ppn;
+			write.process = InvertedPageTable[ppn].process;
+			write.vpn = InvertedPageTable[ppn].vpn;
+			write.swapPN = write.process.assignSwapPage(write.vpn);
+			writes.add(write);
+		}
+
+		Collections.sort(writes, new Comparator<PageWrite>() {
+			public int compare(PageWrite a, PageWrite b) {
+				return a.swapPN - b.swapPN;
+			}
+		});
+
+		byte[] memory = Machine.processor().getMemory();
+		int pageSize = Processor.pageSize;
+		byte[] buffer = new byte[writes.size() * pageSize];
+
+		for (int i = 0; i < writes.size(); i++) {
+			PageWrite write = writes.get(i);
+			write.process.beginWrite(write.vpn);
+			System.arraycopy(memory, write.ppn * pageSize, buffer, i * pageSize,
+					pageSize);
+		}
+
+		// one request for each run of adjacent swap pages
+		int start = 0;
+		while (start < writes.size()) {
+			int end = start + 1;
+			while (end < writes.size()
+					&& writes.get(end).swapPN == writes.get(end - 1).swapPN + 1)
+				end++;
+
+			memoryLock.release();
+			swapCache.write(writes.get(start).swapPN, buffer, start * pageSize,
+					end - start);
+			memoryLock.acquire();
+
+			for (int i = start; i < end; i++)
+				writes.get(i).process.endWrite(writes.get(i).vpn);
+
+			numSwapWrites += end - start;
+			numWritebacks += end - start;
+			numPageoutWrites++;
+			frameAvailable.wakeAll();
+			pageReady.wakeAll();
+
+			start = end;
+		}
+	}
+
+	/** A page being written by the pageout thread. */
+	private static class PageWrite {
+		VMProcess process;
+
+		int vpn;
+
+		int ppn;
+
+		int swapPN;
+	}
+
+	/**
+	 * The state of one physical page. All fields are guarded by
+	 * <tt>memoryLock</tt>.
+	 */
 	public class InvertedPageEntry {
+		/**
+		 * The process whose page is in this frame, or <tt>null</tt> if the
+		 * frame is free or on its way to a new owner.
+		 */
 		public VMProcess process;
-		public boolean isPinned;
-		public TranslationEntry entry;
-	
-		public InvertedPageEntry(VMProcess process, boolean isPinned, TranslationEntry entry) {
+
+		/** The virtual page of <tt>process</tt> mapping this frame. */
+		public int vpn;
+
+		/**
+		 * The number of outstanding pins. A pinned frame is never chosen for
+		 * eviction: it is either being filled, being written to swap, or in
+		 * use by a device transfer or a copy to or from user memory.
+		 */
+		public int pinCount = 0;
+
+		/**
+		 * Pages of other processes that map this frame. They are invalidated
+		 * along with the owner's when the page is evicted, and each that is
+		 * dirty is written to its own swap page; one of them becomes the
+		 * owner if the owner releases it.
+		 */
+		public LinkedList<VirtualPage> sharers = new LinkedList<VirtualPage>();
+
+		/**
+		 * Whether the page was read ahead of a fault and has not been used
+		 * since. Cleared when the replacement policy finds it used.
+		 */
+		public boolean prefetched = false;
+
+		/**
+		 * The mapped file whose page is in this frame, or <tt>null</tt> if
+		 * the page is backed by swap. A file page is shared by every process
+		 * mapping it, through <tt>sharers</tt>, and may be written to.
+		 */
+		public MappedFile mappedFile = null;
+
+		/** The page number within <tt>mappedFile</tt>. */
+		public int filePage;
+
+		/**
+		 * Whether a working set sample found the page used, and cleared its
+		 * used bit, since the replacement policy last looked at it.
+		 */
+		public boolean referenced = false;
+
+		/**
+		 * Whether the deduplication thread has merged identical pages into
+		 * this frame. The page is mapped read-only by its owner and every
+		 * sharer, though each may write to its own copy of it.
+		 */
+		public boolean merged = false;
+
+		public InvertedPageEntry(VMProcess process, int vpn) {
 			this.process = process;
-			this.isPinned = isPinned;
-			this.entry = entry;
+			this.vpn = vpn;
 		}
 	}
 
+	/**
+	 * A virtual page of a process, which identifies it for as long as the
+	 * process lives.
+	 */
+	public static class VirtualPage {
+		public VirtualPage(VMProcess process, int vpn) {
+			this.process = process;
+			this.vpn = vpn;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof VirtualPage))
+				return false;
+
+			VirtualPage page = (VirtualPage) o;
+			return page.process == process && page.vpn == vpn;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(process) * 31 + vpn;
+		}
+
+		public final VMProcess process;
+
+		public final int vpn;
+	}
+
 	public static InvertedPageEntry [] InvertedPageTable;
 
 	// dummy variables to make javac smarter
@@ -79,14 +682,138 @@ public class VMKernel extends UserKernel {
 	private static final char dbgVM = 'v';
 
 
-	public static LinkedList<Integer> freeSwapPages;
-	public static int totalpins = 0;
-	public static int currSwapPointer = 0;
 	public static  OpenFile swapFile;
 
-	public static Condition CV;
-	public static Lock VMLock;
+	/**
+	 * Every swap page is read and written through this cache, never through
+	 * <tt>swapFile</tt> directly.
+	 */
+	public static CompressedSwapCache swapCache;
+
+	/** Which pages of the swap file are in use. Guarded by <tt>swapLock</tt>. */
+	private static SwapAllocator swapAllocator;
+
+	/** The number of swap pages a process reserves at a time. */
+	public static int swapClusterSize;
+
+	/**
+	 * The most pages a process reads ahead of a sequential fault. If 0, only
+	 * the faulting page is read.
+	 */
+	public static int prefetchMax;
+
+	/**
+	 * The number of pages in a huge page: an aligned run of zero-filled
+	 * pages of the executable or stack, faulted in together to adjacent
+	 * frames. If 0 or 1, pages are always faulted in one at a time.
+	 */
+	public static int hugePageSize;
+
+	/**
+	 * The size of the largest address space a process may map files into,
+	 * in pages.
+	 */
+	public static int maxVirtualPages;
+
+	/**
+	 * Guards <tt>swapAllocator</tt>, and <tt>swapFile</tt> while it is being
+	 * recreated.
+	 */
+	public static Lock swapLock;
+
+	/**
+	 * Guards the inverted page table, the clock hand, and the page tables of
+	 * every <tt>VMProcess</tt>. It is only held for bookkeeping: every swap
+	 * or executable read and write is done with it released, with the frame
+	 * involved pinned and the page marked busy in its process.
+	 */
+	public static Lock memoryLock;
+
+	/** Signalled when a frame is unpinned or freed. */
+	public static Condition2 frameAvailable;
+
+	/** Signalled when a busy page finishes moving in or out of memory. */
+	public static Condition2 pageReady;
+
+	/** Chooses pages to evict. Guarded by <tt>memoryLock</tt>. */
+	public static ReplacementPolicy replacementPolicy;
+
+	/**
+	 * Ticks between working set samples, and the number of samples a page
+	 * stays in its process's working set after it was last used.
+	 */
+	static int workingSetInterval, workingSetWindow;
+
+	/**
+	 * The working set assumed for a process that has not started, and the
+	 * most ticks <tt>exec()</tt> waits for memory before starting one anyway.
+	 */
+	static int admissionPages, admissionTimeout;
+
+	/** Processes whose working sets are sampled. */
+	private static LinkedList<VMProcess> processes = new LinkedList<VMProcess>();
+
+	/**
+	 * The number of samples taken, the sum of the working sets at the last
+	 * one, and the largest that sum has been.
+	 */
+	private static int numSamples = 0, totalWorkingSet = 0,
+			peakTotalWorkingSet = 0;
+
+	/** The number of <tt>exec()</tt> calls that waited for memory. */
+	static int numAdmissionDelays = 0;
+
+	/**
+	 * The number of huge pages mapped, and the number of faults that could
+	 * have mapped one but found no free run of frames.
+	 */
+	static int numHugePages = 0, numHugePageFallbacks = 0;
+
+	/** Ticks between passes of the deduplication thread, or 0 for none. */
+	static int dedupInterval;
+
+	/**
+	 * The number of pages merged into another frame, the number given a
+	 * private copy again, and the most frames merging has saved at once.
+	 */
+	static int numMerges = 0, numMergesBroken = 0, peakMergedPages = 0;
+
+	/**
+	 * The number of pages a fork shared with the child, the number of those
+	 * given a private copy on a write, and the number of swapped-out pages a
+	 * fork copied into the child's swap pages.
+	 */
+	static int numForkShares = 0, numForkCopies = 0, numForkSwapCopies = 0;
+
+	/** Keeps the processor's TLB, if it has one, in step with page tables. */
+	public static TLBManager tlb;
+
+	/** Frames waiting for the pageout thread, and which frames are queued. */
+	private static LinkedList<Integer> writebackQueue = new LinkedList<Integer>();
+
+	private static boolean[] writebackQueued;
+
+	/** Signalled when the pageout thread may have work to do. */
+	private static Condition2 pageoutNeeded;
+
+	/** The number of clean or free frames the pageout thread keeps. */
+	private static int pageoutLowWater;
+
+	/** The most pages the pageout thread writes at once. */
+	private static int pageoutBatch;
+
+	/** The next frame the pageout thread examines for dirty pages. */
+	private static int pageoutHand = 0;
+
+	/**
+	 * Paging statistics, kept here because the machine's <tt>Stats</tt> are
+	 * not writable by the kernel. Guarded by <tt>memoryLock</tt>.
+	 */
+	public static int numPageIns = 0, numEvictions = 0, numSwapReads = 0,
+			numSwapWrites = 0, numWritebacks = 0, numPageoutWrites = 0,
+			numPrefetches = 0, numPrefetchesWasted = 0, numFileReads = 0,
+			numFileWrites = 0;
+
+	private static int numSwapTruncations = 0;
 
-	public static int toEvict = 0;
-	
 }
@@ -1,6 +1,8 @@
 package nachos.vm;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -9,6 +11,18 @@ import nachos.vm.*;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * A process's page table is a packed <tt>PageTable</tt>, not the
+ * <tt>pageTable</tt> array of <tt>UserProcess</tt>, which stays
+ * <tt>null</tt>; <tt>VMKernel.tlb</tt> gives the processor entries from it.
+ * Page tables and the inverted page table are guarded by
+ * <tt>VMKernel.memoryLock</tt>, which is never held across I/O. A page that is
+ * being read in or written out is marked busy in its process's
+ * <tt>pageBusy</tt> array, and its frame is pinned, for the duration of the
+ * transfer; anyone else who needs the page waits on
+ * <tt>VMKernel.pageReady</tt>. Copies to and from user memory pin one page at
+ * a time and copy with no lock held.
  */
 public class VMProcess extends UserProcess {
 	/**
@@ -24,6 +38,7 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+		VMKernel.tlb.sync();
 	}
 
 	/**
@@ -31,327 +46,1282 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		VMKernel.tlb.switchTo(this);
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
-	 * 
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		//return super.loadSections();
-		pageTable = new TranslationEntry[numPages];
-		for(int i = 0; i < numPages; i++) {
-			//int getFreePhysicalPage = UserKernel.freePages.pollFirst();
-			// no need to give a physical page
-			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
+		pages = new PageTable(numPages);
+		pageBusy = new boolean[numPages];
+
+		// everything outside the sections is stack or arguments
+		sectionOf = new int[numPages];
+		Arrays.fill(sectionOf, -1);
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			for (int i = 0; i < section.getLength(); i++)
+				sectionOf[section.getFirstVPN() + i] = s;
 		}
+
+		swapPageOf = new int[numPages];
+		Arrays.fill(swapPageOf, -1);
+
+		baseNumPages = numPages;
+		startSampling();
 		return true;
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>: every
+	 * resident frame and every page of swap this process holds.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel.memoryLock.acquire();
+		VMKernel.tlb.flush(this);
+		VMKernel.removeProcess(this);
+		Lib.debug(dbgVM, "VM process " + executableName + ": working set "
+				+ workingSetSize + " (peak " + peakWorkingSet + "), resident "
+				+ getNumResidentPages() + ", faults " + numFaults + " ("
+				+ getFaultRate() + " per 100000 ticks), swap pages "
+				+ getNumSwapPages() + ", page table leaves "
+				+ pages.getNumLeaves());
+
+		for (Mapping mapping : mappings.values())
+			unmap(mapping);
+		mappings.clear();
+
+		// let writes of our pages finish; more may start while we sleep
+		boolean slept;
+		do {
+			slept = false;
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				while (pageBusy[vpn]) {
+					VMKernel.pageReady.sleep();
+					slept = true;
+				}
+			}
+		} while (slept);
+
+		UserKernel.pagesLock.acquire();
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			// we may have been switched back to while sleeping
+			if (pages.isValid(vpn)) {
+				releaseFrame(vpn);
+				pages.clear(vpn);
+				VMKernel.tlb.update(this, vpn);
+			}
+
+			if (swapPageOf[vpn] != -1) {
+				VMKernel.freeSwapPages(swapPageOf[vpn], 1);
+				swapPageOf[vpn] = -1;
+			}
+		}
+		UserKernel.pagesLock.release();
+
+		if (swapClusterLeft > 0) {
+			VMKernel.freeSwapPages(swapClusterNext, swapClusterLeft);
+			swapClusterLeft = 0;
+		}
+
+		VMKernel.tlb.flush(this);
+		pages = null;
+		VMKernel.frameAvailable.wakeAll();
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Drop this process's mapping of a resident page. If other processes
+	 * share the frame, one of their entries takes over as its owner;
+	 * otherwise the frame is freed. Called with both locks held.
+	 */
+	private void releaseFrame(int vpn) {
+		int ppn = pages.getPPN(vpn);
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+
+		if (!isOwner(frame, vpn))
+			frame.sharers.remove(new VMKernel.VirtualPage(this, vpn));
+		else if (!frame.sharers.isEmpty())
+			passOwnership(frame);
+
+		if (UserKernel.releaseFrame(ppn)) {
+			VMKernel.replacementPolicy.pageRemoved(ppn, false);
+			frame.process = null;
+			frame.sharers.clear();
+			frame.merged = false;
+		}
+	}
+
+	/** Test whether a frame is owned by one of this process's pages. */
+	private boolean isOwner(VMKernel.InvertedPageEntry frame, int vpn) {
+		return frame.process == this && frame.vpn == vpn;
+	}
+
+	/**
+	 * Make the first sharer of a frame its owner, when the owner is done with
+	 * it.
+	 */
+	private static void passOwnership(VMKernel.InvertedPageEntry frame) {
+		VMKernel.VirtualPage owner = frame.sharers.removeFirst();
+		frame.process = owner.process;
+		frame.vpn = owner.vpn;
+	}
+
+	/**
+	 * Return this process's page table. Called with
+	 * <tt>VMKernel.memoryLock</tt> held, or by <tt>VMKernel.tlb</tt>.
+	 *
+	 * @return the page table, or <tt>null</tt> once the process has exited.
+	 */
+	PageTable getPageTable() {
+		return pages;
 	}
 
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		VMKernel.VMLock.acquire();
+		return copyVirtualMemory(vaddr, data, offset, length, false);
+	}
+
+	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy between user memory and a kernel array one page at a time, each
+	 * page faulted in and pinned by <tt>pinVirtualPage()</tt> so that the
+	 * copy itself runs with no lock held.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean writing) {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
 
-		if (vaddr < 0 || vaddr >= pageSize * numPages || vaddr >= memory.length ) {
-			VMKernel.VMLock.release();
+		if (vaddr < 0)
 			return 0;
+
+		int transferred = 0;
+		while (transferred < length) {
+			int addr = vaddr + transferred;
+			int vpn = Processor.pageFromAddress(addr);
+			int pageOffset = Processor.offsetFromAddress(addr);
+			int amount = Math.min(length - transferred, pageSize - pageOffset);
+
+			int ppn = pinVirtualPage(vpn, writing);
+			if (ppn == -1)
+				break;
+
+			int paddr = ppn * pageSize + pageOffset;
+			if (writing)
+				System.arraycopy(data, offset + transferred, memory, paddr, amount);
+			else
+				System.arraycopy(memory, paddr, data, offset + transferred, amount);
+
+			unpinVirtualPage(vpn);
+			transferred += amount;
 		}
-		int vpn = Processor.pageFromAddress(vaddr);
-		if(vpn >= pageTable.length || vpn < 0){
-			VMKernel.VMLock.release();
-			return 0;
+
+		return transferred;
+	}
+
+	/**
+	 * Fault in the specified virtual page if necessary and pin its frame so
+	 * that it cannot be evicted while a file transfers directly to or from
+	 * it.
+	 */
+	protected int pinVirtualPage(int vpn, boolean writing) {
+		if (vpn < 0 || vpn >= numPages)
+			return -1;
+
+		VMKernel.memoryLock.acquire();
+
+		if (pages == null || !isAddressable(vpn)
+				|| (writing && isReadOnlyPage(vpn))) {
+			VMKernel.memoryLock.release();
+			return -1;
 		}
-		//if(pageTable == null) return 0;
 
-		int amount = Math.min(length, memory.length - vaddr);
-		int readAmount = 0, base_vaddr = vaddr;
-		while(base_vaddr < vaddr + length) {
-			if(base_vaddr >= numPages * pageSize || base_vaddr >= memory.length)
-				break;
-			vpn = Processor.pageFromAddress(base_vaddr);
+		faultIn(vpn);
+		if (writing && isMerged(vpn))
+			breakMerge(vpn);
 
-			if(vpn >= pageTable.length || vpn < 0){
-				VMKernel.VMLock.release();
-				return readAmount;
-			}
+		int ppn = pages.getPPN(vpn);
+		VMKernel.InvertedPageTable[ppn].pinCount++;
+		pages.setUsed(vpn, true);
+		if (writing)
+			pages.setDirty(vpn, true);
 
-			int baseaddr_offset = Processor.offsetFromAddress(base_vaddr);
-			//int ppn = pageTable[vpn].ppn;
-			//if(pageTable[vpn].valid == false) break;
-			if(pageTable[vpn].valid == true) {
-				VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = true;
-				VMKernel.totalpins++;
-				pageTable[vpn].used = true;
-			}
-			else {
-				int get_vaddr = Processor.makeAddress(vpn, 0);
-				HandlePageFault(get_vaddr);
-				if(pageTable[vpn].valid){  
-					VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = true;
-					VMKernel.totalpins++;
-					pageTable[vpn].used = true;
-				  }
-				  else{
-					VMKernel.VMLock.release();
-					return readAmount;
-				  }
+		VMKernel.memoryLock.release();
+		return ppn;
+	}
+
+	/**
+	 * Unpin a page pinned by <tt>pinVirtualPage()</tt>, waking any thread
+	 * waiting for a frame to evict.
+	 */
+	protected void unpinVirtualPage(int vpn) {
+		VMKernel.memoryLock.acquire();
+		VMKernel.InvertedPageTable[pages.getPPN(vpn)].pinCount--;
+		VMKernel.frameAvailable.wake();
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Give a forked child the pages this process has modified. A resident
+	 * modified page is shared copy-on-write: the child's page maps the same
+	 * frame as a sharer, both are made read-only, and whichever process
+	 * writes first gets a private copy from <tt>breakMerge()</tt>. The
+	 * child's page is dirty, since its contents are not in any backing store
+	 * of the child's, so it is written to the child's swap if the frame is
+	 * evicted. Only a modified page that is swapped out is copied now, to a
+	 * new swap page of the child's. Pages that were never modified are left
+	 * for the child to demand-page from the executable or zero-fill, as they
+	 * would be for a new process. A page with a swap page has been modified
+	 * at some point, even if it is clean now.
+	 */
+	protected boolean copyAddressSpace(UserProcess child) {
+		VMProcess vmChild = (VMProcess) child;
+		byte[] page = new byte[pageSize];
+
+		// mapped files are not inherited
+		vmChild.numPages = baseNumPages;
+		vmChild.baseNumPages = baseNumPages;
+		vmChild.pages = new PageTable(baseNumPages);
+		vmChild.pageBusy = new boolean[baseNumPages];
+		vmChild.sectionOf = sectionOf;
+		vmChild.swapPageOf = new int[baseNumPages];
+		Arrays.fill(vmChild.swapPageOf, -1);
+
+		VMKernel.memoryLock.acquire();
+		VMKernel.tlb.sync();
+		for (int vpn = 0; vpn < baseNumPages; vpn++) {
+			while (pageBusy[vpn])
+				VMKernel.pageReady.sleep();
+
+			boolean valid = pages.isValid(vpn);
+			if (valid && (pages.isDirty(vpn) || swapPageOf[vpn] != -1)) {
+				vmChild.shareFrame(vpn, pages.getPPN(vpn));
+				pages.setReadOnly(vpn, true);
+				VMKernel.tlb.update(this, vpn);
+				VMKernel.numForkShares++;
 			}
-			int checkAddr = pageTable[vpn].ppn * pageSize + baseaddr_offset ;
-			if( checkAddr< 0 || checkAddr >= memory.length){
-				VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = false;
-				VMKernel.totalpins--;
-				VMKernel.CV.wake();
-				VMKernel.VMLock.release();
-				return readAmount;
-			  }
-
-			int nextbase_vaddr = (vpn + 1) * pageSize;
-			if(nextbase_vaddr < vaddr + length && nextbase_vaddr < numPages*pageSize) {
-				amount = nextbase_vaddr   - base_vaddr;
+			else if (!valid && swapPageOf[vpn] != -1) {
+				// only this thread can bring our swapped pages back in
+				int swapPN = swapPageOf[vpn];
+				int childSwapPN = vmChild.assignSwapPage(vpn);
+				VMKernel.memoryLock.release();
+				VMKernel.swapCache.read(swapPN, page, 0);
+				VMKernel.swapCache.write(childSwapPN, page, 0, 1);
+				VMKernel.memoryLock.acquire();
+				VMKernel.numSwapReads++;
+				VMKernel.numSwapWrites++;
+				VMKernel.numForkSwapCopies++;
 			}
-			else {
-				amount = Math.min(vaddr + length, numPages * pageSize) - base_vaddr;
+		}
+		VMKernel.memoryLock.release();
+
+		vmChild.startSampling();
+		return true;
+	}
+
+	/**
+	 * Map one of this process's pages, dirty and read-only, to a frame
+	 * another process owns, as a sharer of it. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	private void shareFrame(int vpn, int ppn) {
+		UserKernel.pagesLock.acquire();
+		UserKernel.shareFrame(ppn);
+		UserKernel.pagesLock.release();
+
+		pages.map(vpn, ppn, true, true);
+		pages.setUsed(vpn, false);
+		VMKernel.InvertedPageTable[ppn].sharers.add(new VMKernel.VirtualPage(
+				this, vpn));
+	}
+
+	/**
+	 * Start estimating this process's working set, once its page table
+	 * exists.
+	 */
+	private void startSampling() {
+		lastUse = new int[pages.getNumPages()];
+		startTime = Machine.timer().getTime();
+
+		VMKernel.memoryLock.acquire();
+		VMKernel.addProcess(this);
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Record which pages were used since the last sample and re-estimate
+	 * the working set: the pages used in the last
+	 * <tt>VMKernel.workingSetWindow</tt> samples, resident or not. Used bits
+	 * are cleared, and the replacement policy is told through the frame's
+	 * <tt>referenced</tt> flag instead. Called by the working set thread with
+	 * <tt>memoryLock</tt> held.
+	 *
+	 * @param sample the number of this sample, counting from 1.
+	 * @return the working set size, in pages.
+	 */
+	int sampleWorkingSet(int sample) {
+		if (pages == null)
+			return 0;
+
+		for (int vpn = pages.nextValid(0); vpn != -1; vpn = pages
+				.nextValid(vpn + 1)) {
+			if (pages.isUsed(vpn)) {
+				pages.setUsed(vpn, false);
+				VMKernel.InvertedPageTable[pages.getPPN(vpn)].referenced = true;
+				VMKernel.tlb.update(this, vpn);
+				lastUse[vpn] = sample;
 			}
+		}
 
-			int memp_addr = pageTable[vpn].ppn * pageSize + baseaddr_offset;
-			System.arraycopy(memory, memp_addr, data, offset, amount);
-			VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = false;
-			VMKernel.totalpins--;
-			VMKernel.CV.wake();
-			base_vaddr = nextbase_vaddr;
-			offset += amount;
-			readAmount += amount;
+		int size = 0;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (lastUse[vpn] != 0
+					&& sample - lastUse[vpn] < VMKernel.workingSetWindow)
+				size++;
 		}
-		VMKernel.VMLock.release();
-		return readAmount;
+
+		workingSetSize = size;
+		peakWorkingSet = Math.max(peakWorkingSet, size);
+		return size;
 	}
 
+	/**
+	 * Return the estimated working set of this process, as of the last
+	 * sample.
+	 *
+	 * @return the working set size, in pages.
+	 */
+	public int getWorkingSetSize() {
+		return workingSetSize;
+	}
 
-	//write VM
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		VMKernel.VMLock.acquire();
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
+	/**
+	 * Return the number of this process's pages that are resident.
+	 *
+	 * @return the number of valid pages.
+	 */
+	public int getNumResidentPages() {
+		int count = 0;
+		for (int vpn = pages.nextValid(0); vpn != -1; vpn = pages
+				.nextValid(vpn + 1))
+			count++;
+		return count;
+	}
+
+	/**
+	 * Return the number of page faults this process has taken for every
+	 * 100000 ticks it has existed.
+	 *
+	 * @return the fault rate.
+	 */
+	public long getFaultRate() {
+		long age = Machine.timer().getTime() - startTime;
+		return (age == 0) ? 0 : numFaults * 100000L / age;
+	}
+
+	/**
+	 * Return the number of swap pages this process holds, including the
+	 * unused part of its swap cluster.
+	 *
+	 * @return the number of swap pages.
+	 */
+	public int getNumSwapPages() {
+		int count = swapClusterLeft;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (swapPageOf[vpn] != -1)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Wait, for a while at most, until the estimated working sets leave room
+	 * in physical memory for another process, so that starting one does not
+	 * make every process thrash.
+	 */
+	protected void admitNewProcess() {
+		long deadline = Machine.timer().getTime() + VMKernel.admissionTimeout;
+
+		boolean delayed = false;
+		while (VMKernel.isOvercommitted(this)
+				&& Machine.timer().getTime() < deadline) {
+			delayed = true;
+			ThreadedKernel.alarm.waitUntil(VMKernel.workingSetInterval);
+		}
+
+		if (delayed)
+			VMKernel.numAdmissionDelays++;
+	}
+
+	/**
+	 * Make a virtual page resident. Called with <tt>memoryLock</tt> held, and
+	 * returns with it held and the page valid, but releases it while waiting
+	 * for a frame or for I/O.
+	 *
+	 * @param vpn the virtual page, which must be in range.
+	 */
+	private void faultIn(int vpn) {
+		// reading ahead releases the lock, so the page may be evicted again
+		while (!pages.isValid(vpn)) {
+			if (pageBusy[vpn]) {
+				VMKernel.pageReady.sleep();
+			}
+			else if (!loadHugePage(vpn)) {
+				loadPage(vpn, false);
+				readAhead(vpn);
+			}
+		}
+	}
+
+	/**
+	 * Fault in the whole huge page around a page that starts zero-filled, if
+	 * every page of it does and none is resident yet: map its
+	 * <tt>VMKernel.hugePageSize</tt> pages at once to a run of physically
+	 * adjacent, aligned frames. Only free frames are used, so if no free run
+	 * is long enough the page is faulted in alone. Once mapped, each page is
+	 * evicted and written to swap on its own. Called with
+	 * <tt>memoryLock</tt> held, which is not released.
+	 *
+	 * @param vpn the virtual page, which must be neither valid nor busy.
+	 * @return <tt>true</tt> if the huge page was mapped.
+	 */
+	private boolean loadHugePage(int vpn) {
+		int size = VMKernel.hugePageSize;
+		if (size < 2)
+			return false;
+
+		int firstVPN = vpn - vpn % size;
+		if (firstVPN + size > baseNumPages)
+			return false;
+		for (int i = firstVPN; i < firstVPN + size; i++) {
+			if (pages.isValid(i) || pageBusy[i] || !isZeroFillPage(i))
+				return false;
+		}
+
+		UserKernel.pagesLock.acquire();
+		int firstPPN = UserKernel.allocateContiguousFrames(size);
+		UserKernel.pagesLock.release();
+		if (firstPPN == -1) {
+			VMKernel.numHugePageFallbacks++;
+			return false;
+		}
 
 		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, firstPPN * pageSize, (firstPPN + size) * pageSize,
+				(byte) 0);
 
-		if (vaddr < 0 || vaddr >= pageSize * numPages || vaddr >= memory.length ) {
-			VMKernel.VMLock.release();
-			return 0;
+		for (int i = 0; i < size; i++) {
+			int ppn = firstPPN + i;
+			mapPage(firstVPN + i, ppn, false, false);
+			pages.setUsed(firstVPN + i, firstVPN + i == vpn);
+
+			VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+			frame.process = this;
+			frame.vpn = firstVPN + i;
+			frame.sharers.clear();
+			frame.prefetched = false;
+			frame.referenced = false;
+			frame.merged = false;
+			VMKernel.replacementPolicy.pageLoaded(ppn);
 		}
-		int vpn = Processor.pageFromAddress(vaddr);
-		if(vpn >= pageTable.length || vpn < 0){
-			VMKernel.VMLock.release();
-			return 0;
+
+		VMKernel.numPageIns++;
+		VMKernel.numHugePages++;
+		lastFaultVPN = vpn;
+		Lib.debug(dbgVM, "huge page " + firstVPN + "-" + (firstVPN + size - 1)
+				+ " mapped to frames " + firstPPN + "-" + (firstPPN + size - 1));
+		return true;
+	}
+
+	/**
+	 * Test whether a page of the executable, stack or arguments would start
+	 * zero-filled if it were faulted in now: it is in no section, or in an
+	 * uninitialized one, and has never been written to swap.
+	 */
+	private boolean isZeroFillPage(int vpn) {
+		return vpn < baseNumPages && swapPageOf[vpn] == -1
+				&& (sectionOf[vpn] == -1 || !coff.getSection(sectionOf[vpn])
+						.isInitialzed());
+	}
+
+	/**
+	 * Map a file at a page-aligned address beyond the executable, stack and
+	 * arguments, growing the address space to cover it if necessary. Its
+	 * pages are faulted in from the file as they are touched.
+	 */
+	protected int mapFile(int index, OpenFile file, int address) {
+		if (file.length() < 0)
+			return -1;
+
+		VMKernel.memoryLock.acquire();
+
+		MappedFile mapped = MappedFile.open(file.getName());
+		if (mapped == null) {
+			VMKernel.memoryLock.release();
+			return -1;
 		}
 
-		int amount = Math.min(length, memory.length - vaddr);
-		int writeAmount = 0, base_vaddr = vaddr;
-		while(base_vaddr < vaddr + length) {
-			if(base_vaddr >= numPages * pageSize || base_vaddr >= memory.length)
+		int firstVPN = Processor.pageFromAddress(address);
+		int endVPN = firstVPN + mapped.getNumPages();
+		boolean overlaps = (firstVPN < baseNumPages || endVPN > VMKernel.maxVirtualPages);
+		for (int vpn = firstVPN; vpn < endVPN && !overlaps; vpn++)
+			overlaps = (getMapping(vpn) != null);
+
+		if (overlaps) {
+			mapped.close();
+			VMKernel.memoryLock.release();
+			return -1;
+		}
+
+		if (endVPN > pages.getNumPages())
+			growAddressSpace(endVPN);
+
+		Mapping mapping = new Mapping();
+		mapping.file = mapped;
+		mapping.firstVPN = firstVPN;
+		mapping.numPages = mapped.getNumPages();
+		for (int vpn = firstVPN; vpn < endVPN; vpn++)
+			mappingOf[vpn] = mapping;
+		mappings.put(index, mapping);
+		numPages = Math.max(numPages, endVPN);
+
+		VMKernel.memoryLock.release();
+		return mapped.getLength();
+	}
+
+	protected void unmapFile(int index) {
+		VMKernel.memoryLock.acquire();
+
+		Mapping mapping = mappings.remove(index);
+		if (mapping != null) {
+			unmap(mapping);
+
+			numPages = baseNumPages;
+			for (Mapping other : mappings.values())
+				numPages = Math.max(numPages, other.firstVPN + other.numPages);
+		}
+
+		VMKernel.memoryLock.release();
+	}
+
+	protected boolean isMapped(int index) {
+		VMKernel.memoryLock.acquire();
+		boolean mapped = mappings.containsKey(index);
+		VMKernel.memoryLock.release();
+		return mapped;
+	}
+
+	/**
+	 * Remove a mapping from the address space, releasing each resident page
+	 * of it. Called with <tt>memoryLock</tt> held, which is released while
+	 * pages are written back.
+	 */
+	private void unmap(Mapping mapping) {
+		MappedFile mapped = mapping.file;
+
+		for (int i = 0; i < mapping.numPages; i++) {
+			int vpn = mapping.firstVPN + i;
+			while (pageBusy[vpn])
+				VMKernel.pageReady.sleep();
+
+			if (pages.isValid(vpn))
+				releaseMappedPage(mapped, i, vpn);
+			pages.clear(vpn);
+			VMKernel.tlb.update(this, vpn);
+			mappingOf[vpn] = null;
+			lastUse[vpn] = 0;
+		}
+
+		// an eviction may still be writing one of our pages to the file
+		for (int i = 0; i < mapping.numPages; i++) {
+			while (mapped.getFrame(i) == MappedFile.busy)
+				VMKernel.pageReady.sleep();
+		}
+
+		mapped.close();
+	}
+
+	/**
+	 * Drop this process's mapping of a resident file page. If other processes
+	 * map it, the page stays resident, and is left dirty if this process
+	 * wrote to it; otherwise it is written back if dirty and its frame freed.
+	 * Called with <tt>memoryLock</tt> held, which is released during a write.
+	 */
+	private void releaseMappedPage(MappedFile mapped, int filePage, int vpn) {
+		int ppn = pages.getPPN(vpn);
+		boolean dirty = pages.isDirty(vpn);
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+
+		if (!isOwner(frame, vpn) || !frame.sharers.isEmpty()) {
+			if (isOwner(frame, vpn))
+				passOwnership(frame);
+			else
+				frame.sharers.remove(new VMKernel.VirtualPage(this, vpn));
+			if (dirty)
+				frame.process.getPageTable().setDirty(frame.vpn, true);
+
+			UserKernel.pagesLock.acquire();
+			UserKernel.releaseFrame(ppn);
+			UserKernel.pagesLock.release();
+			return;
+		}
+
+		if (dirty) {
+			mapped.setFrame(filePage, MappedFile.busy);
+			writeToFile(mapped, filePage, ppn);
+		}
+
+		VMKernel.replacementPolicy.pageRemoved(ppn, false);
+		frame.process = null;
+		frame.mappedFile = null;
+		frame.prefetched = false;
+
+		UserKernel.pagesLock.acquire();
+		UserKernel.releaseFrame(ppn);
+		UserKernel.pagesLock.release();
+
+		mapped.setFrame(filePage, -1);
+		VMKernel.pageReady.wakeAll();
+		VMKernel.frameAvailable.wake();
+	}
+
+	/**
+	 * Extend the page table and the arrays indexed by virtual page to
+	 * <i>size</i> pages. Called with <tt>memoryLock</tt> held.
+	 */
+	private void growAddressSpace(int size) {
+		int oldSize = pages.getNumPages();
+
+		pages.grow(size);
+		pageBusy = Arrays.copyOf(pageBusy, size);
+		swapPageOf = Arrays.copyOf(swapPageOf, size);
+		Arrays.fill(swapPageOf, oldSize, size, -1);
+		lastUse = Arrays.copyOf(lastUse, size);
+		mappingOf = (mappingOf == null) ? new Mapping[size] : Arrays.copyOf(
+				mappingOf, size);
+	}
+
+	/** Return the mapping covering a virtual page, or <tt>null</tt>. */
+	private Mapping getMapping(int vpn) {
+		if (mappingOf == null || vpn >= mappingOf.length)
+			return null;
+		return mappingOf[vpn];
+	}
+
+	/**
+	 * Test whether a virtual page below <tt>numPages</tt> may be used: it is
+	 * part of the executable, stack or arguments, or of a mapped file.
+	 */
+	private boolean isAddressable(int vpn) {
+		return vpn < baseNumPages || getMapping(vpn) != null;
+	}
+
+	/**
+	 * After a fault, read in the pages beyond it if this process has been
+	 * faulting sequentially, in either direction. The window doubles with
+	 * each fault next to the last one, up to <tt>VMKernel.prefetchMax</tt>
+	 * pages, and halves each time a page read ahead is evicted before it was
+	 * used. Only free frames are used, so reading ahead never evicts a page,
+	 * and it stops at a page that would start zero-filled. Called with
+	 * <tt>memoryLock</tt> held.
+	 *
+	 * @param vpn the page that was just faulted in.
+	 */
+	private void readAhead(int vpn) {
+		int direction = vpn - lastFaultVPN;
+		lastFaultVPN = vpn;
+		if (direction != 1 && direction != -1)
+			return;
+
+		prefetchWindow = Math.min(VMKernel.prefetchMax, Math.max(1,
+				prefetchWindow * 2));
+
+		for (int i = 1; i <= prefetchWindow; i++) {
+			int next = vpn + i * direction;
+			if (next < 0 || next >= numPages)
+				break;
+			if (!isAddressable(next))
+				break;
+			if (pages.isValid(next) || pageBusy[next])
+				continue;
+			if (isZeroFillPage(next))
 				break;
 
-			vpn = Processor.pageFromAddress(base_vaddr);
+			if (!loadPage(next, true))
+				break;
+		}
+	}
 
-			if(vpn >= pageTable.length || vpn < 0){
-				VMKernel.VMLock.release();
-				return writeAmount;
-			}
+	/**
+	 * Note that a page this process read ahead was evicted without being
+	 * used, and read fewer pages ahead from now on. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	private void prefetchWasted() {
+		VMKernel.numPrefetchesWasted++;
+		prefetchWindow /= 2;
+	}
 
-			int baseaddr_offset = Processor.offsetFromAddress(base_vaddr);
-			//int ppn = pageTable[vpn].ppn;
-			int nextbase_vaddr = (vpn + 1) * pageSize;
-			//if(pageTable[vpn].valid == false || pageTable[vpn].readOnly) break;
-
-			if(pageTable[vpn].valid == true) {
-				if(pageTable[vpn].readOnly == false){
-					VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = true;
-					VMKernel.totalpins++;
-					pageTable[vpn].used = true; 
-				  }
-				  else{
-					VMKernel.VMLock.release();
-					return writeAmount;
-				  }
-			}
-			else {
-				int get_vaddr =  Processor.makeAddress(vpn, 0);
-				HandlePageFault(get_vaddr);
-				if(pageTable[vpn].valid){
-					if(pageTable[vpn].readOnly == false){
-					  VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = true;
-					  VMKernel.totalpins++;
-					  pageTable[vpn].used = true; 
-					}
-					else{
-					  VMKernel.VMLock.release();
-					  return writeAmount;
-					}
-				  }
-				  else{
-					VMKernel.VMLock.release();
-					return writeAmount;
-				  }
-			}
-			int memp_addr =  pageTable[vpn].ppn * pageSize + baseaddr_offset;
-			if(memp_addr < 0 || memp_addr >= memory.length) {
-				VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = false;
-				VMKernel.totalpins--;
-				VMKernel.CV.wake();
-				VMKernel.VMLock.release();
-				return writeAmount;
-			}
+	/**
+	 * Read a page that is not resident into a frame and map it. Called with
+	 * <tt>memoryLock</tt> held, and releases it while waiting for a frame or
+	 * for I/O.
+	 *
+	 * @param vpn the virtual page, which must be neither valid nor busy.
+	 * @param prefetch <tt>true</tt> if the page is being read ahead of a
+	 * fault: it is only read into a free frame, and is mapped as not yet
+	 * used.
+	 * @return <tt>true</tt> if the page was mapped, or <tt>false</tt> if it
+	 * was being read ahead and there was no free frame.
+	 */
+	private boolean loadPage(int vpn, boolean prefetch) {
+		if (getMapping(vpn) != null)
+			return loadMappedPage(vpn, prefetch);
 
-			if(nextbase_vaddr < (vaddr + length) && nextbase_vaddr < numPages*pageSize) {
-				amount = nextbase_vaddr  - base_vaddr;
-			}
-			else {
-				amount = Math.min(vaddr + length, numPages * pageSize) - base_vaddr;
+		pageBusy[vpn] = true;
+
+		int swapPN = swapPageOf[vpn];
+		boolean inSwap = (swapPN != -1);
+
+		int sectionNumber = -1;
+		CoffSection section = null;
+		if (!inSwap) {
+			sectionNumber = sectionOf[vpn];
+			if (sectionNumber != -1)
+				section = coff.getSection(sectionNumber);
+		}
+		boolean readOnly = (section != null && section.isReadOnly());
+
+		// map the copy of a read-only page another process already loaded
+		if (readOnly) {
+			UserKernel.pagesLock.acquire();
+			int spn = vpn - section.getFirstVPN();
+			int sharedPPN = UserKernel.findTextPage(executableName,
+					executableGeneration, sectionNumber, spn);
+			if (sharedPPN != -1) {
+				UserKernel.shareFrame(sharedPPN);
+				UserKernel.pagesLock.release();
+
+				mapPage(vpn, sharedPPN, true, false);
+				pages.setUsed(vpn, !prefetch);
+				VMKernel.InvertedPageTable[sharedPPN].sharers
+						.add(new VMKernel.VirtualPage(this, vpn));
+				pageBusy[vpn] = false;
+				VMKernel.pageReady.wakeAll();
+				return true;
 			}
+			UserKernel.pagesLock.release();
+		}
 
-			System.arraycopy(data, offset, memory, memp_addr, amount);
-			if(amount > 0) {
-				pageTable[vpn].dirty = true;
+		boolean zeroFill = !inSwap
+				&& (section == null || !section.isInitialzed());
+		int ppn;
+		if (prefetch) {
+			ppn = allocateFreeFrame(zeroFill);
+			if (ppn == -1) {
+				pageBusy[vpn] = false;
+				VMKernel.pageReady.wakeAll();
+				return false;
 			}
-			VMKernel.InvertedPageTable[pageTable[vpn].ppn].isPinned = false;
-            VMKernel.totalpins--;
-            VMKernel.CV.wake();
-			base_vaddr = nextbase_vaddr;
-			offset += amount;
-			writeAmount += amount;
-		}
-		VMKernel.VMLock.release();
-		return writeAmount;
-	}
-
-	public int LoadSection() {
-		int ppn = 0;
-		int numPhysicalPages = Machine.processor().getNumPhysPages();
-		if(UserKernel.freePages.isEmpty()){
-			while(true) {
-				if(VMKernel.InvertedPageTable[VMKernel.toEvict].isPinned == true){
-					if(VMKernel.totalpins == numPhysicalPages){
-						VMKernel.CV.sleep();
-					}
-					VMKernel.toEvict = VMKernel.toEvict++;
-					if(VMKernel.toEvict  >= numPhysicalPages)
-						VMKernel.toEvict -= numPhysicalPages;
-					continue;
-				}
-				if(VMKernel.InvertedPageTable[VMKernel.toEvict].entry.used == false){
-					break;
-				}
-				VMKernel.InvertedPageTable[VMKernel.toEvict].entry.used = false;
-				VMKernel.toEvict = VMKernel.toEvict++;
-				if(VMKernel.toEvict  >= numPhysicalPages)
-					VMKernel.toEvict -= numPhysicalPages;
+		}
+		else {
+			ppn = allocateFrame(zeroFill);
+		}
+
+		if (!zeroFill) {
+			VMKernel.memoryLock.release();
+			if (inSwap)
+				VMKernel.swapCache.read(swapPN, Machine.processor().getMemory(),
+						ppn * pageSize);
+			else
+				section.loadPage(vpn - section.getFirstVPN(), ppn);
+			VMKernel.memoryLock.acquire();
+		}
+
+		VMKernel.numPageIns++;
+		if (inSwap)
+			VMKernel.numSwapReads++;
+		if (prefetch)
+			VMKernel.numPrefetches++;
+
+		// the swap page keeps its copy until the page is modified again
+		mapPage(vpn, ppn, readOnly, false);
+		pages.setUsed(vpn, !prefetch);
+
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+		frame.process = this;
+		frame.vpn = vpn;
+		frame.sharers.clear();
+		frame.prefetched = prefetch;
+		frame.referenced = false;
+		frame.merged = false;
+		frame.pinCount--;
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+
+		if (readOnly) {
+			UserKernel.pagesLock.acquire();
+			UserKernel.addTextPage(executableName, executableGeneration,
+					sectionNumber, vpn - section.getFirstVPN(), ppn);
+			UserKernel.pagesLock.release();
+		}
+
+		pageBusy[vpn] = false;
+		VMKernel.pageReady.wakeAll();
+		VMKernel.frameAvailable.wake();
+		return true;
+	}
+
+	/**
+	 * Read a page of a mapped file into a frame and map it, or map the frame
+	 * that already holds it if another process has it resident. Called with
+	 * <tt>memoryLock</tt> held, and releases it while waiting for a frame or
+	 * for I/O.
+	 *
+	 * @param vpn the virtual page, which must be neither valid nor busy.
+	 * @param prefetch <tt>true</tt> if the page is being read ahead of a
+	 * fault.
+	 * @return <tt>true</tt> if the page was mapped, or <tt>false</tt> if it
+	 * was being read ahead and there was no free frame.
+	 */
+	private boolean loadMappedPage(int vpn, boolean prefetch) {
+		Mapping mapping = mappingOf[vpn];
+		MappedFile mapped = mapping.file;
+		int filePage = vpn - mapping.firstVPN;
+
+		pageBusy[vpn] = true;
+		while (mapped.getFrame(filePage) == MappedFile.busy)
+			VMKernel.pageReady.sleep();
+
+		int ppn = mapped.getFrame(filePage);
+		if (ppn != -1) {
+			UserKernel.pagesLock.acquire();
+			UserKernel.shareFrame(ppn);
+			UserKernel.pagesLock.release();
+
+			mapPage(vpn, ppn, false, false);
+			pages.setUsed(vpn, !prefetch);
+			VMKernel.InvertedPageTable[ppn].sharers
+					.add(new VMKernel.VirtualPage(this, vpn));
+			pageBusy[vpn] = false;
+			VMKernel.pageReady.wakeAll();
+			return true;
+		}
+
+		mapped.setFrame(filePage, MappedFile.busy);
+		ppn = prefetch ? allocateFreeFrame(false) : allocateFrame(false);
+		if (ppn == -1) {
+			mapped.setFrame(filePage, -1);
+			pageBusy[vpn] = false;
+			VMKernel.pageReady.wakeAll();
+			return false;
+		}
+
+		VMKernel.memoryLock.release();
+		mapped.readPage(filePage, Machine.processor().getMemory(), ppn
+				* pageSize);
+		VMKernel.memoryLock.acquire();
+
+		VMKernel.numPageIns++;
+		VMKernel.numFileReads++;
+		if (prefetch)
+			VMKernel.numPrefetches++;
+
+		mapPage(vpn, ppn, false, false);
+		pages.setUsed(vpn, !prefetch);
+
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+		frame.process = this;
+		frame.vpn = vpn;
+		frame.sharers.clear();
+		frame.prefetched = prefetch;
+		frame.referenced = false;
+		frame.merged = false;
+		frame.mappedFile = mapped;
+		frame.filePage = filePage;
+		frame.pinCount--;
+		mapped.setFrame(filePage, ppn);
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+
+		pageBusy[vpn] = false;
+		VMKernel.pageReady.wakeAll();
+		VMKernel.frameAvailable.wake();
+		return true;
+	}
+
+	/**
+	 * Make a page valid and used, and give the processor its new entry if it
+	 * has the page loaded.
+	 */
+	private void mapPage(int vpn, int ppn, boolean readOnly, boolean dirty) {
+		pages.map(vpn, ppn, readOnly, dirty);
+		VMKernel.tlb.update(this, vpn);
+	}
+
+	/**
+	 * Test whether a page belongs to a read-only section of the executable.
+	 * Its page table entry may be read-only for another reason: see
+	 * <tt>isMerged()</tt>.
+	 */
+	private boolean isReadOnlyPage(int vpn) {
+		if (swapPageOf[vpn] != -1 || vpn >= baseNumPages)
+			return false;
+
+		return sectionOf[vpn] != -1 && coff.getSection(sectionOf[vpn]).isReadOnly();
+	}
+
+	/**
+	 * Test whether a resident page is mapped read-only only because the
+	 * deduplication scanner merged it with an identical page, or a fork
+	 * shared it, so that a write to it should get it a private copy. Called
+	 * with <tt>memoryLock</tt> held.
+	 */
+	private boolean isMerged(int vpn) {
+		return pages.isValid(vpn) && pages.isReadOnly(vpn)
+				&& !isReadOnlyPage(vpn);
+	}
+
+	/**
+	 * Give a merged or fork-shared page a private, writable frame holding a
+	 * copy of it, keeping its dirty bit. If no other page shares its frame
+	 * any more, the frame is simply made writable. Called with <tt>memoryLock</tt> held, and releases it while
+	 * waiting for a frame.
+	 *
+	 * @param vpn the virtual page, which must be merged.
+	 */
+	private void breakMerge(int vpn) {
+		int oldPPN = pages.getPPN(vpn);
+		VMKernel.InvertedPageEntry oldFrame = VMKernel.InvertedPageTable[oldPPN];
+
+		if (isOwner(oldFrame, vpn) && oldFrame.sharers.isEmpty()) {
+			pages.setReadOnly(vpn, false);
+			oldFrame.merged = false;
+			VMKernel.tlb.update(this, vpn);
+			return;
+		}
+
+		boolean dirty = pages.isDirty(vpn);
+		if (oldFrame.merged)
+			VMKernel.numMergesBroken++;
+		else
+			VMKernel.numForkCopies++;
+
+		pageBusy[vpn] = true;
+		oldFrame.pinCount++;
+		int ppn = allocateFrame(false);
+
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, oldPPN * pageSize, memory, ppn * pageSize,
+				pageSize);
+		oldFrame.pinCount--;
+
+		UserKernel.pagesLock.acquire();
+		releaseFrame(vpn);
+		UserKernel.pagesLock.release();
+
+		mapPage(vpn, ppn, false, dirty);
+
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+		frame.process = this;
+		frame.vpn = vpn;
+		frame.sharers.clear();
+		frame.prefetched = false;
+		frame.referenced = false;
+		frame.merged = false;
+		frame.pinCount--;
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+
+		pageBusy[vpn] = false;
+		VMKernel.pageReady.wakeAll();
+		VMKernel.frameAvailable.wake();
+	}
+
+	/**
+	 * Test whether a page is being read in or written out. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	boolean isPageBusy(int vpn) {
+		return pageBusy[vpn];
+	}
+
+	/**
+	 * Get a frame for a page being faulted in, pinned so that it cannot be
+	 * taken while it is filled. Uses a free frame if there is one, and
+	 * otherwise evicts a page, waiting for a frame to be unpinned if every
+	 * frame is pinned. Called with <tt>memoryLock</tt> held.
+	 *
+	 * @param zeroed <tt>true</tt> if the frame must be filled with zeros.
+	 * @return the physical page number.
+	 */
+	private int allocateFrame(boolean zeroed) {
+		while (true) {
+			int ppn = allocateFreeFrame(zeroed);
+			if (ppn != -1)
+				return ppn;
+
+			ppn = evictFrame();
+			if (ppn != -1) {
+				VMKernel.wakePageout();
+				VMKernel.InvertedPageTable[ppn].pinCount++;
+				if (zeroed)
+					Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+							(ppn + 1) * pageSize, (byte) 0);
+				return ppn;
 			}
-			int toEvict = VMKernel.toEvict;
-			VMKernel.toEvict++;
-			if(VMKernel.toEvict  >= numPhysicalPages)
-				VMKernel.toEvict -= numPhysicalPages;
-
-			if(VMKernel.InvertedPageTable[toEvict].entry.dirty){
-				int swapPN = 0;
-				if(!VMKernel.freeSwapPages.isEmpty()){
-					swapPN = VMKernel.freeSwapPages.removeLast();
-				}
-				else{
-					swapPN = VMKernel.currSwapPointer;
-					VMKernel.currSwapPointer++;
-				}
-				VMKernel.swapFile.write(swapPN * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(VMKernel.InvertedPageTable[toEvict].entry.ppn, 0), Processor.pageSize);
-				
-				VMKernel.InvertedPageTable[toEvict].entry.vpn = swapPN;
+
+			VMKernel.frameAvailable.sleep();
+		}
+	}
+
+	/**
+	 * Get a free frame, pinned, without evicting a page. Called with
+	 * <tt>memoryLock</tt> held.
+	 *
+	 * @param zeroed <tt>true</tt> if the frame must be filled with zeros.
+	 * @return the physical page number, or -1 if no frame is free.
+	 */
+	private int allocateFreeFrame(boolean zeroed) {
+		UserKernel.pagesLock.acquire();
+		int ppn = zeroed ? UserKernel.allocateZeroedFrame()
+				: UserKernel.allocateFrame();
+		UserKernel.pagesLock.release();
+
+		if (ppn != -1)
+			VMKernel.InvertedPageTable[ppn].pinCount++;
+		return ppn;
+	}
+
+	/**
+	 * Take the frame of a resident page chosen by the replacement policy,
+	 * first writing it to the swap page of each page mapping it that is
+	 * dirty, or to its file if it is a mapped file's page. Called with
+	 * <tt>memoryLock</tt> held, which is released during the write.
+	 *
+	 * @return the freed frame, not yet pinned, or -1 if every frame is
+	 * pinned or free.
+	 */
+	private int evictFrame() {
+		int ppn = VMKernel.replacementPolicy.chooseVictim();
+		if (ppn == -1)
+			return -1;
+
+		VMKernel.InvertedPageEntry frame = VMKernel.InvertedPageTable[ppn];
+		VMProcess victim = frame.process;
+		int vpn = frame.vpn;
+		PageTable victimPages = victim.pages;
+
+		VMKernel.replacementPolicy.pageRemoved(ppn, true);
+		VMKernel.numEvictions++;
+
+		if (frame.prefetched && !victimPages.isUsed(vpn) && !frame.referenced)
+			victim.prefetchWasted();
+		frame.prefetched = false;
+
+		// the dirty pages mapping the frame, each with its own backing store
+		ArrayList<VMKernel.VirtualPage> dirtyPages = new ArrayList<VMKernel.VirtualPage>();
+		if (victimPages.isDirty(vpn))
+			dirtyPages.add(new VMKernel.VirtualPage(victim, vpn));
+		for (VMKernel.VirtualPage sharer : frame.sharers) {
+			if (sharer.process.pages.isDirty(sharer.vpn))
+				dirtyPages.add(sharer);
+		}
+
+		// any process mapping a file page may have written it
+		MappedFile mapped = frame.mappedFile;
+		boolean mappedDirty = !dirtyPages.isEmpty();
+		if (mapped != null) {
+			mapped.setFrame(frame.filePage, mappedDirty ? MappedFile.busy : -1);
+			frame.mappedFile = null;
+		}
+
+		victimPages.clear(vpn);
+		VMKernel.tlb.update(victim, vpn);
+		for (VMKernel.VirtualPage sharer : frame.sharers) {
+			sharer.process.pages.clear(sharer.vpn);
+			VMKernel.tlb.update(sharer.process, sharer.vpn);
+		}
+		frame.sharers.clear();
+		frame.process = null;
+		frame.merged = false;
+
+		UserKernel.pagesLock.acquire();
+		UserKernel.reclaimFrame(ppn);
+		UserKernel.pagesLock.release();
+
+		if (mapped != null) {
+			if (mappedDirty) {
+				writeToFile(mapped, frame.filePage, ppn);
+				mapped.setFrame(frame.filePage, -1);
+				VMKernel.pageReady.wakeAll();
 			}
-			int ev = VMKernel.InvertedPageTable[toEvict].entry.ppn;
-			VMKernel.InvertedPageTable[toEvict].process.pageTable[ev].valid = false;
-			VMKernel.InvertedPageTable[toEvict].entry.valid = false;
-			ppn = VMKernel.InvertedPageTable[toEvict].entry.ppn;
 		}
-		else {				// if there are free pages
-			ppn = UserKernel.freePages.removeLast();
+		else if (!dirtyPages.isEmpty()) {
+			writeToSwap(dirtyPages, ppn);
 		}
+
 		return ppn;
 	}
-	public void HandlePageFault(int BadVAddr) {
-		UserKernel.pagesLock.acquire();
-		int numPhysicalPages = Machine.processor().getNumPhysPages();
-		int getPageVPN = Processor.pageFromAddress(BadVAddr);
-		int startVPN = 0;
-		for (int s = 0; s < coff.getNumSections(); s++) {
-			CoffSection section = coff.getSection(s);
-			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-					+ " section (" + section.getLength() + " pages)");
-			for (int i = 0; i < section.getLength(); i++) {
-				int vpn = section.getFirstVPN() + i;
-				startVPN = vpn;
-				if(vpn != getPageVPN) continue;
-				//if there is no free page
-				int ppn = LoadSection();
-				if(!pageTable[vpn].dirty){
-					section.loadPage(i, ppn); 
-					pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), true, false);
-				}
-				else {
-					int _ppn = pageTable[vpn].vpn;
-					VMKernel.swapFile.read(_ppn * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
-                    VMKernel.freeSwapPages.add(_ppn);
-                	pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, true);
-				}
-				VMKernel.InvertedPageTable[ppn].entry = pageTable[vpn];
-				VMKernel.InvertedPageTable[ppn].process = this;     
-			}              
-		}
-		for(int i = startVPN + 1; i < numPages; i++) {
-			int vpn = i;
-			if(vpn != getPageVPN) continue;
-			int ppn = LoadSection();
-			if(!pageTable[vpn].dirty){
-				byte[] data = new byte[Processor.pageSize];
-				System.arraycopy(data, 0, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
-				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, false);
-			  }
-			  else{
-				VMKernel.swapFile.read(pageTable[vpn].vpn * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
-				VMKernel.freeSwapPages.add(pageTable[vpn].vpn);
-				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, true);
-			  }
-			  VMKernel.InvertedPageTable[ppn].process = this;
-			  VMKernel.InvertedPageTable[ppn].entry = pageTable[vpn];	
+
+	/**
+	 * Write a frame back to its page of a mapped file. The frame is pinned
+	 * during the write, and the caller must have marked the file page busy.
+	 * Called with <tt>memoryLock</tt> held, which is released during the
+	 * write.
+	 */
+	private static void writeToFile(MappedFile mapped, int filePage, int ppn) {
+		VMKernel.InvertedPageTable[ppn].pinCount++;
+
+		VMKernel.memoryLock.release();
+		mapped.writePage(filePage, Machine.processor().getMemory(), ppn
+				* pageSize);
+		VMKernel.memoryLock.acquire();
+
+		VMKernel.numFileWrites++;
+		VMKernel.InvertedPageTable[ppn].pinCount--;
+	}
+
+	/**
+	 * Copy a frame that has just been evicted to the swap page of each of the
+	 * pages that mapped it, allocating swap pages for those that do not have
+	 * one yet. The pages are all busy, so that none of their processes can
+	 * fault them in or exit, and the frame pinned, until every write is done.
+	 * Called with <tt>memoryLock</tt> held, which is released during the
+	 * writes.
+	 */
+	private static void writeToSwap(ArrayList<VMKernel.VirtualPage> dirtyPages,
+			int ppn) {
+		int[] swapPNs = new int[dirtyPages.size()];
+		for (int i = 0; i < swapPNs.length; i++) {
+			VMKernel.VirtualPage page = dirtyPages.get(i);
+			swapPNs[i] = page.process.assignSwapPage(page.vpn);
+			page.process.pageBusy[page.vpn] = true;
 		}
-		UserKernel.pagesLock.release();
-		return;
+		VMKernel.InvertedPageTable[ppn].pinCount++;
+
+		VMKernel.memoryLock.release();
+		for (int swapPN : swapPNs)
+			VMKernel.swapCache.write(swapPN, Machine.processor().getMemory(),
+					ppn * pageSize, 1);
+		VMKernel.memoryLock.acquire();
+
+		VMKernel.numSwapWrites += swapPNs.length;
+		VMKernel.InvertedPageTable[ppn].pinCount--;
+		for (VMKernel.VirtualPage page : dirtyPages)
+			page.process.pageBusy[page.vpn] = false;
+		VMKernel.pageReady.wakeAll();
+	}
+
+	/**
+	 * Return the swap page of a virtual page, giving it one if it has none.
+	 * Called with <tt>memoryLock</tt> held.
+	 */
+	int assignSwapPage(int vpn) {
+		if (swapPageOf[vpn] == -1)
+			swapPageOf[vpn] = allocateSwapPage();
+		return swapPageOf[vpn];
+	}
+
+	/**
+	 * Take the next page of this process's swap cluster, reserving a new
+	 * cluster of <tt>VMKernel.swapClusterSize</tt> adjacent pages when it is
+	 * used up. Called with <tt>memoryLock</tt> held.
+	 */
+	private int allocateSwapPage() {
+		if (swapClusterLeft == 0) {
+			swapClusterNext = VMKernel.allocateSwapPages(VMKernel.swapClusterSize);
+			swapClusterLeft = VMKernel.swapClusterSize;
+		}
+
+		swapClusterLeft--;
+		return swapClusterNext++;
+	}
+
+	/**
+	 * Prepare to write a page to its swap page: mark it clean, so that a
+	 * write to it from now on marks it dirty again, and pin its frame and
+	 * mark it busy so that it stays put until <tt>endWrite()</tt>. Called
+	 * with <tt>memoryLock</tt> held.
+	 */
+	void beginWrite(int vpn) {
+		pages.setDirty(vpn, false);
+		VMKernel.tlb.update(this, vpn);
+		pageBusy[vpn] = true;
+		VMKernel.InvertedPageTable[pages.getPPN(vpn)].pinCount++;
+	}
+
+	/**
+	 * Finish a write started by <tt>beginWrite()</tt>. Called with
+	 * <tt>memoryLock</tt> held.
+	 */
+	void endWrite(int vpn) {
+		VMKernel.InvertedPageTable[pages.getPPN(vpn)].pinCount--;
+		pageBusy[vpn] = false;
+		VMKernel.pageReady.wakeAll();
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
+		// the kernel reads used and dirty bits from the page tables
+		VMKernel.tlb.sync();
+
 		switch (cause) {
+		case Processor.exceptionTLBMiss:
 		case Processor.exceptionPageFault:
-			int ex = processor.readRegister(Processor.regBadVAddr);
-			HandlePageFault(ex);
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (vpn < 0 || vpn >= numPages || !isAddressable(vpn)) {
+				super.handleException(cause);
+				break;
+			}
+			VMKernel.memoryLock.acquire();
+			if (!pages.isValid(vpn))
+				numFaults++;
+			int evictions = VMKernel.numEvictions;
+			faultIn(vpn);
+			VMKernel.tlb.refill(this, vpn);
+			boolean evicted = (VMKernel.numEvictions != evictions);
+			VMKernel.memoryLock.release();
+
+			// the timer does not preempt, so under memory pressure give the
+			// pageout thread and finished swap writes a chance to unpin frames;
+			// an instruction may need two pages, so fault in both before
+			// yielding again, or processes can evict each other's pages
+			// forever without finishing an instruction
+			int pc = processor.readRegister(Processor.regPC);
+			if (pc != lastFaultPC)
+				numFaultsAtPC = 0;
+			lastFaultPC = pc;
+			if (evicted && numFaultsAtPC++ % 3 == 0)
+				KThread.yield();
+			break;
+		case Processor.exceptionReadOnly:
+			vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			VMKernel.memoryLock.acquire();
+			boolean merged = (vpn >= 0 && vpn < numPages && isMerged(vpn));
+			if (merged)
+				breakMerge(vpn);
+			VMKernel.memoryLock.release();
+
+			if (!merged)
+				super.handleException(cause);
 			break;
 		default:
 			super.handleException(cause);
@@ -359,6 +1329,89 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * This process's page table, or <tt>null</tt> once it has exited. Guarded
+	 * by <tt>VMKernel.memoryLock</tt>.
+	 */
+	private PageTable pages;
+
+	/**
+	 * For each virtual page, whether it is being read in or written out.
+	 * Guarded by <tt>VMKernel.memoryLock</tt>.
+	 */
+	private boolean[] pageBusy;
+
+	/**
+	 * Where each virtual page comes from when it is not swapped out: the
+	 * number of the executable's section holding it, or -1 for a stack or
+	 * argument page, which starts zero-filled. Never changes after
+	 * <tt>loadSections()</tt>, so a forked child shares its parent's array.
+	 */
+	private int[] sectionOf;
+
+	/**
+	 * The swap page of each virtual page, or -1 if the page has never been
+	 * written out. A page keeps its swap page when it is read back in, so a
+	 * resident page that is clean need not be written again when evicted.
+	 * Guarded by <tt>VMKernel.memoryLock</tt>.
+	 */
+	private int[] swapPageOf;
+
+	/**
+	 * The unused part of the swap cluster this process is filling. Guarded
+	 * by <tt>VMKernel.memoryLock</tt>.
+	 */
+	private int swapClusterNext, swapClusterLeft = 0;
+
+	/**
+	 * The page this process last faulted on, and how many pages it reads
+	 * ahead of a fault that follows it. Guarded by
+	 * <tt>VMKernel.memoryLock</tt>.
+	 */
+	private int lastFaultVPN = -2, prefetchWindow = 0;
+
+	/**
+	 * The program counter of this process's last page fault, and the number
+	 * of faults there that evicted a page.
+	 */
+	private int lastFaultPC = -1, numFaultsAtPC = 0;
+
+	/**
+	 * The number of pages of the executable, stack and arguments. Pages
+	 * beyond these are only addressable where a file is mapped.
+	 */
+	private int baseNumPages;
+
+	/**
+	 * The mapping covering each virtual page, or <tt>null</tt>, and the
+	 * mappings by file descriptor. Guarded by <tt>VMKernel.memoryLock</tt>.
+	 */
+	private Mapping[] mappingOf = null;
+
+	private HashMap<Integer, Mapping> mappings = new HashMap<Integer, Mapping>();
+
+	/**
+	 * The number of the last working set sample that found each virtual page
+	 * used, or 0 if none has.
+	 */
+	private int[] lastUse;
+
+	/** The working set at the last sample, and the largest it has been. */
+	private int workingSetSize = 0, peakWorkingSet = 0;
+
+	/** Page faults taken, and when this process's address space was made. */
+	private int numFaults = 0;
+
+	private long startTime;
+
+	/** A file mapped into this process's address space. */
+	private static class Mapping {
+		MappedFile file;
+
+		int firstVPN;
+
+		int numPages;
+	}
 
 	private static final int pageSize = Processor.pageSize;
 
@@ -367,4 +1420,4 @@ public class VMProcess extends UserProcess {
 	private static final char dbgVM = 'v';
 
 
-}
\ No newline at end of file
+}
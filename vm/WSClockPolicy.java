@@ -0,0 +1,74 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Each frame remembers when its page was last seen to
+ * be used. The hand evicts the first page that has not been used for longer
+ * than the working-set window <i>tau</i> and is clean; dirty pages that old
+ * are scheduled for writeback and passed over, so that they can be taken
+ * cheaply on a later sweep. If a whole sweep finds no such page, the least
+ * recently used page is taken, clean or not; taking the least recently used
+ * clean page instead could evict the page the faulting instruction was just
+ * given, over and over.
+ *
+ * <p>
+ * Time is the machine's tick count. The window is read from the
+ * <tt>WSClockPolicy.tau</tt> configuration key.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		super();
+
+		tau = Config.getInteger("WSClockPolicy.tau", 2000);
+		lastUse = new long[numFrames];
+	}
+
+	public void pageLoaded(int ppn) {
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public int chooseVictim() {
+		long now = Machine.timer().getTime();
+
+		int oldest = -1;
+
+		// a second sweep sees pages whose used bits the first one cleared
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (!isEvictable(ppn))
+				continue;
+
+			if (testAndClearUsed(ppn)) {
+				lastUse[ppn] = now;
+				continue;
+			}
+
+			if (now - lastUse[ppn] > tau) {
+				if (!isDirty(ppn))
+					return ppn;
+				VMKernel.scheduleWriteback(ppn);
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		// every page is in a working set or waiting to be cleaned
+		return oldest;
+	}
+
+	/** The working-set window, in ticks. */
+	private int tau;
+
+	/** The time each frame's page was last seen to be used. */
+	private long[] lastUse;
+
+	/** The next frame to examine. */
+	private int hand = 0;
+}